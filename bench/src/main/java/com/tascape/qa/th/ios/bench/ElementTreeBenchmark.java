@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.bench;
+
+import com.tascape.qa.th.ios.model.UIA;
+import com.tascape.qa.th.ios.model.UIAElement;
+import com.tascape.qa.th.ios.model.UIAWindow;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of element tree parsing, and of the element model used on every test step. The element to find and to
+ * convert to JavaScript is the last named element of the tree, which is the worst case of a depth-first search.
+ * Fixture element-tree-0.txt is left out, it has a window only.
+ *
+ * @author linsong wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElementTreeBenchmark {
+
+    @Param({"element-tree.txt", "element-tree-1.txt", "synthetic-1000", "synthetic-5000", "synthetic-10000"})
+    public String tree;
+
+    private final UIA uia = UIA.newInstance();
+
+    private List<String> lines;
+
+    private List<String> elementLines;
+
+    private UIAWindow window;
+
+    private UIAElement target;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        lines = ElementTrees.load(tree);
+        elementLines = new ArrayList<>();
+        lines.stream().map(String::trim).filter(l -> l.startsWith("UIA") && l.endsWith("}}"))
+            .forEach(elementLines::add);
+        window = uia.parseElementTree(new ArrayList<>(lines));
+        List<UIAElement> elements = ElementTrees.flatten(window);
+        for (int i = elements.size() - 1; i > 0; i--) {
+            UIAElement e = elements.get(i);
+            if (!"(null)".equals(e.name())) {
+                target = e;
+                break;
+            }
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("No element in " + tree);
+        }
+    }
+
+    @Benchmark
+    public UIAWindow parseElementTree() {
+        return uia.parseElementTree(new ArrayList<>(lines));
+    }
+
+    @Benchmark
+    public UIAElement parseUIAElement() {
+        next = (next + 1) % elementLines.size();
+        return uia.parseUIAElement(elementLines.get(next));
+    }
+
+    @Benchmark
+    public UIAElement findElement() {
+        return window.findElement(target.getClass(), target.name());
+    }
+
+    @Benchmark
+    public String toJavaScript() {
+        return target.toJavaScript();
+    }
+
+    @Benchmark
+    public JSONObject toJson() {
+        return window.toJson();
+    }
+}
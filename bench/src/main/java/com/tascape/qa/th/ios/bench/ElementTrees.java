@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.bench;
+
+import com.tascape.qa.th.ios.model.UIA;
+import com.tascape.qa.th.ios.model.UIAElement;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Element trees to benchmark with, either a recorded fixture, such as "element-tree.txt", or a synthetic tree, such as
+ * "synthetic-1000", which has about 1000 elements.
+ *
+ * @author linsong wang
+ */
+public final class ElementTrees {
+
+    public static final String SYNTHETIC = "synthetic-";
+
+    private static final String[] TYPES = new String[]{"UIAButton", "UIAStaticText", "UIATableCell", "UIAElement",
+        "UIAImage", "UIALink", "UIATextField", "UIAScrollView"};
+
+    private ElementTrees() {
+    }
+
+    /**
+     * Loads lines of an element tree, as logged by window.logElementTree().
+     *
+     * @param name fixture name in com/tascape/qa/th/ios/model, or synthetic-N
+     *
+     * @return lines of element tree
+     *
+     * @throws IOException if fixture cannot be read
+     */
+    public static List<String> load(String name) throws IOException {
+        if (name.startsWith(SYNTHETIC)) {
+            return synthetic(Integer.parseInt(name.substring(SYNTHETIC.length())), 6);
+        }
+        try (InputStream in = UIA.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Cannot find element tree " + name);
+            }
+            return IOUtils.readLines(in, Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * Generates an element tree with a fixed fan-out.
+     *
+     * @param size   number of elements, window excluded
+     * @param fanout number of children of each container
+     *
+     * @return lines of element tree
+     */
+    public static List<String> synthetic(int size, int fanout) {
+        List<String> lines = new ArrayList<>();
+        lines.add("2015-11-30 05:23:38 +0000 logElementTree:");
+        lines.add("UIAWindow \"(null)\" {{0, 0}, {320, 568}}");
+        int[] count = new int[]{0};
+        lines.add("elements: {");
+        while (count[0] < size) {
+            addElements(lines, 1, size, fanout, count);
+        }
+        lines.add("}");
+        return lines;
+    }
+
+    /**
+     * Collects all elements of a tree in document order.
+     *
+     * @param root root element
+     *
+     * @return root and all its descendants
+     */
+    public static List<UIAElement> flatten(UIAElement root) {
+        List<UIAElement> elements = new ArrayList<>();
+        elements.add(root);
+        for (UIAElement e : root.elements()) {
+            elements.addAll(flatten(e));
+        }
+        return elements;
+    }
+
+    private static void addElements(List<String> lines, int depth, int size, int fanout, int[] count) {
+        String indent = StringUtils.repeat('\t', depth);
+        for (int i = 0; i < fanout && count[0] < size; i++) {
+            int n = count[0]++;
+            float y = (n * 44) % 568;
+            lines.add(indent + TYPES[n % TYPES.length] + " \"name " + n + "\" {{" + (i * 8.5) + ", " + y
+                + "}, {320, 43.5}}");
+            if (i == 0 && depth < 12 && count[0] < size) {
+                lines.add(indent + "elements: {");
+                addElements(lines, depth + 1, size, fanout, count);
+                lines.add(indent + "}");
+            }
+        }
+    }
+}
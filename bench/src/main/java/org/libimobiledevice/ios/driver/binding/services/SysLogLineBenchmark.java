@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libimobiledevice.ios.driver.binding.services;
+
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of syslog line parsing, with a recorded device syslog stream. It is in the package of SysLogLine, whose
+ * constructor is package private.
+ *
+ * @author linsong wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SysLogLineBenchmark {
+
+    public static final String SYSLOG = "/com/tascape/qa/th/ios/bench/syslog.txt";
+
+    private String[] lines;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        try (InputStream in = SysLogLineBenchmark.class.getResourceAsStream(SYSLOG)) {
+            List<String> list = IOUtils.readLines(in, Charset.defaultCharset());
+            lines = list.toArray(new String[list.size()]);
+        }
+    }
+
+    @Benchmark
+    public SysLogLine parse() throws Exception {
+        next = (next + 1) % lines.length;
+        return new SysLogLine(lines[next]);
+    }
+}
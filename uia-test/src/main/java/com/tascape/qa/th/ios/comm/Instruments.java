@@ -24,6 +24,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteStreamHandler;
 import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
@@ -31,42 +32,60 @@ import org.apache.commons.io.FileUtils;
 import org.libimobiledevice.ios.driver.binding.exceptions.SDKException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.martiansoftware.nailgun.NGServer;
 import com.tascape.qa.th.SystemConfiguration;
 import com.tascape.qa.th.Utils;
 import com.tascape.qa.th.comm.EntityCommunication;
 import com.tascape.qa.th.ios.driver.UiAutomationDevice;
-import net.sf.lipermi.exception.LipeRMIException;
-import net.sf.lipermi.handler.CallHandler;
-import net.sf.lipermi.net.Server;
+import com.tascape.qa.th.ios.model.UIAApplication;
 import com.tascape.qa.th.ios.model.UIAException;
 import com.tascape.qa.th.libx.DefaultExecutor;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Observable;
+import java.util.Map;
 import java.util.Observer;
-import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
 
 /**
  *
  * @author linsong wang
  */
-public class Instruments extends EntityCommunication implements JavaScriptServer, Observer {
+public class Instruments extends EntityCommunication implements JavaScriptServer {
     private static final Logger LOG = LoggerFactory.getLogger(Instruments.class);
 
     public static final String SYSPROP_JS_TIMEOUT_SECOND = "qa.th.comm.ios.JS_TIMEOUT_SECOND";
 
+    public static final String SYSPROP_JS_DRAIN_MAX = "qa.th.comm.ios.JS_DRAIN_MAX";
+
+    public static final String SYSPROP_JS_DRAIN_LINGER_MILLIS = "qa.th.comm.ios.JS_DRAIN_LINGER_MILLIS";
+
+    public static final String SYSPROP_JS_POST_MAX_BYTES = "qa.th.comm.ios.JS_POST_MAX_BYTES";
+
+    public static final String SYSPROP_MAX_RESTARTS = "qa.th.comm.ios.MAX_RESTARTS";
+
     public static final String CACHE_DIR = "/Library/Caches/com.apple.dt.instruments";
 
     public static final String UIA_SCRIPT_EXCEPTION
@@ -82,28 +101,86 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
     public static final int JAVASCRIPT_TIMEOUT_SECOND
         = SystemConfiguration.getInstance().getIntProperty(SYSPROP_JS_TIMEOUT_SECOND, 120);
 
-    private final String INSTRUMENTS_POISON = "POISON-" + UUID.randomUUID().toString();
+    /**
+     * Max number of queued JavaScript snippets handed to device in one ng client call.
+     */
+    public static final int JAVASCRIPT_DRAIN_MAX
+        = SystemConfiguration.getInstance().getIntProperty(SYSPROP_JS_DRAIN_MAX, 20);
+
+    /**
+     * Time to wait for more snippets after the first one is retrieved, 0 to hand over only what is already queued.
+     */
+    public static final int JAVASCRIPT_DRAIN_LINGER_MILLIS
+        = SystemConfiguration.getInstance().getIntProperty(SYSPROP_JS_DRAIN_LINGER_MILLIS, 0);
+
+    /**
+     * Max number of UTF-8 bytes of results posted back in one ng client call, which are passed as one command-line
+     * argument, and so are kept well below ARG_MAX of macOS. Results over the budget are posted by following calls,
+     * and a single result over the budget fails its request.
+     */
+    public static final int JAVASCRIPT_POST_MAX_BYTES
+        = SystemConfiguration.getInstance().getIntProperty(SYSPROP_JS_POST_MAX_BYTES, 65536);
+
+    /**
+     * Time for ng client to wait for the first snippet, which is kept below the host task timeout of on-device loop,
+     * so that a snippet is never handed to an ng client that has been killed.
+     */
+    public static final int JAVASCRIPT_IDLE_MILLIS = 5000;
+
+    /**
+     * Max number of times instruments process is restarted after it exits unexpectedly, per launch, 0 to fail all
+     * pending requests right away instead.
+     */
+    public static final int MAX_RESTARTS = SystemConfiguration.getInstance().getIntProperty(SYSPROP_MAX_RESTARTS, 3);
+
+    private static final ScheduledExecutorService DEADLINES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "instruments-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final ExecutorService SUPERVISOR = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "instruments-supervisor");
+        t.setDaemon(true);
+        return t;
+    });
 
     static {
         Executors.newScheduledThreadPool(1).scheduleAtFixedRate(new CacheCleaner(), 0, 15, TimeUnit.MINUTES);
     }
 
-    private final SynchronousQueue<String> javaScriptQueue = new SynchronousQueue<>();
+    private final BlockingDeque<PendingScript> javaScriptQueue = new LinkedBlockingDeque<>();
+
+    private final Map<String, PendingScript> pendingScripts = new ConcurrentHashMap<>();
+
+    private final Map<String, String> sessionState = new LinkedHashMap<>();
 
-    private final BlockingQueue<String> responseQueue = new ArrayBlockingQueue<>(5000);
+    private final ResponseDemultiplexer demux = new ResponseDemultiplexer();
 
-    private int ngPort;
+    private volatile String startError;
 
-    private int rmiPort = 38998;
+    private volatile int restarts;
 
-    private NGServer ngServer;
+    private volatile boolean closed;
 
-    private Server rmiServer;
+    /**
+     * Incremented on each restart, so that an ng client call of the exited process does not take scripts meant for
+     * the new one.
+     */
+    private volatile int epoch;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private InstrumentsBridge bridge;
 
     private ExecuteWatchdog instrumentsDog;
 
     private ESH instrumentsStreamHandler;
 
+    private final OutputDispatcher output = new OutputDispatcher();
+
+    private final List<OutputDispatcher.Subscription> observerSubscriptions = new CopyOnWriteArrayList<>();
+
     private final Path uiaResultsPath = Paths.get(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString());
 
     private final String uuid;
@@ -112,6 +189,22 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
 
     private String preTargetJavaScript = "";
 
+    private int launchTries = 1;
+
+    private int launchDelayMillis;
+
+    private long launchTimeoutMillis;
+
+    private final InstrumentsMetrics metrics;
+
+    /**
+     * Gets the first message logged by UIALogger.logMessage() from response lines. This scrapes Instruments output,
+     * and is kept as a fallback of {@link #evaluate(String)}.
+     *
+     * @param lines response lines
+     *
+     * @return message logged
+     */
     public static String getLogMessage(List<String> lines) {
         String line = lines.stream().filter(l -> StringUtils.contains(l, "Default:")).findFirst().get();
         return line.substring(line.indexOf("Default: ") + 9);
@@ -120,183 +213,894 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
     public Instruments(String uuid, String appName) throws SDKException {
         this.uuid = uuid;
         this.appName = appName;
+        this.metrics = InstrumentsMetrics.forDevice(uuid);
     }
 
     public void setPreTargetJavaScript(String javaScript) {
         this.preTargetJavaScript = javaScript;
     }
 
+    public String getPreTargetJavaScript() {
+        return preTargetJavaScript;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    /**
+     * Gets bridge latency and error metrics of the device, which are kept across sessions.
+     *
+     * @return metrics of the device
+     */
+    public InstrumentsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts Instruments, and waits for the app to show up.
+     *
+     * @param tries         number of tries of instruments command
+     * @param delayMillis   wait for app to start
+     * @param timeoutMillis wait for app element on each try
+     *
+     * @throws Exception if app does not launch
+     */
+    public void launch(int tries, int delayMillis, long timeoutMillis) throws Exception {
+        this.launchTries = tries;
+        this.launchDelayMillis = delayMillis;
+        this.launchTimeoutMillis = timeoutMillis;
+        this.restarts = 0;
+        this.generation.incrementAndGet();
+        synchronized (sessionState) {
+            sessionState.clear();
+        }
+        for (int i = 0; i < tries; i++) {
+            this.disconnect();
+            this.connect();
+            Utils.sleep(delayMillis, "Wait for app to start");
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (end > System.currentTimeMillis()) {
+                boolean started = false;
+                try {
+                    started = this.runJavaScript("app.logElement();").stream()
+                        .filter(l -> l.contains(UIAApplication.class.getSimpleName())).findAny().isPresent();
+                } catch (Exception ex) {
+                    LOG.warn("cannot start app", ex);
+                    Thread.sleep(5000);
+                }
+                if (started) {
+                    this.checkRuntime();
+                    return;
+                }
+            }
+        }
+        throw new UIAException("Cannot start app " + appName);
+    }
+
+    /**
+     * Checks that the helper runtime on device is the same version as {@link JavaScriptRuntime}.
+     *
+     * @throws UIAException if the versions do not match
+     */
+    private void checkRuntime() {
+        String version = this.evaluate(JavaScriptRuntime.version(), JAVASCRIPT_TIMEOUT_SECOND * 1000L, true);
+        if (!String.valueOf(JavaScriptRuntime.VERSION).equals(version)) {
+            throw new UIAException("Helper runtime version on device is " + version + ", expect "
+                + JavaScriptRuntime.VERSION);
+        }
+    }
+
+    /**
+     * Starts Instruments again, with the same parameters of last {@link #launch(int, int, long)}.
+     *
+     * @throws Exception if app does not launch
+     */
+    public void relaunch() throws Exception {
+        this.launch(launchTries, launchDelayMillis, launchTimeoutMillis);
+    }
+
     @Override
-    public void connect() throws Exception {
-        LOG.debug("Start app {} on {}", appName, uuid);
-        if (ngServer == null) {
-            ngServer = this.startNailGunServer();
+    public synchronized void connect() throws Exception {
+        if (closed) {
+            throw new UIAException("Instruments on " + uuid + " is shut down");
         }
-        if (rmiServer == null) {
-            rmiServer = this.startRmiServer();
+        LOG.debug("Start app {} on {}", appName, uuid);
+        startError = null;
+        if (bridge == null) {
+            bridge = InstrumentsBridge.getInstance();
         }
+        bridge.register(uuid, this);
         instrumentsDog = this.startInstrumentsServer(appName);
     }
 
     @Override
-    public void disconnect() {
-        responseQueue.clear();
+    public synchronized void disconnect() {
+        javaScriptQueue.clear();
+        demux.failAll(new UIAException("Instruments disconnected"));
+        observerSubscriptions.forEach(OutputDispatcher.Subscription::close);
+        observerSubscriptions.clear();
         if (instrumentsDog != null) {
             LOG.trace("Stop instruments on {}", uuid);
-            instrumentsStreamHandler.deleteObservers();
+            instrumentsStreamHandler.detach();
             instrumentsDog.stop();
             instrumentsDog.killedProcess();
+            instrumentsDog = null;
         }
     }
 
+    /**
+     * Stops Instruments for good, it cannot be connected again.
+     */
     public void shutdown() {
+        closed = true;
         this.disconnect();
-        if (ngServer != null) {
-            ngServer.shutdown(false);
-        }
-        if (rmiServer != null) {
-            rmiServer.close();
+        output.close();
+        if (bridge != null) {
+            bridge.unregister(uuid, this);
         }
     }
 
     public List<String> runJavaScript(String javaScript) {
-        if (responseQueue.contains(INSTRUMENTS_POISON)) {
-            responseQueue.clear();
-            throw new UIAException("Instruments start error");
+        return this.runJavaScript(javaScript, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Runs JavaScript on device, and waits for the response no longer than the timeout. The deadline covers the whole
+     * request, and is handed to on-device loop, which skips the script if it is picked up after the deadline.
+     *
+     * @param javaScript    JavaScript to run
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return response lines
+     *
+     * @throws UIAException if there is no response before deadline, or the request is cancelled
+     */
+    public List<String> runJavaScript(String javaScript, long timeoutMillis) {
+        return this.runJavaScript(javaScript, timeoutMillis, false);
+    }
+
+    /**
+     * Runs JavaScript on device, and waits for the response no longer than the timeout. An idempotent script, such as
+     * one that only logs elements, is run again if instruments exits and is restarted before the response arrives.
+     *
+     * @param javaScript    JavaScript to run
+     * @param timeoutMillis deadline of the request, from now, including any retry
+     * @param idempotent    true if the script can safely run more than once
+     *
+     * @return response lines
+     *
+     * @throws UIAException if there is no response before deadline, the request is cancelled, or instruments exits
+     *                      while a non-idempotent script is on device
+     */
+    public List<String> runJavaScript(String javaScript, long timeoutMillis, boolean idempotent) {
+        RequestTiming timing = new RequestTiming();
+        return checkErrors(await(sendBatch(Lists.newArrayList(javaScript), timing, timeoutMillis, idempotent), timing)
+            .get(0));
+    }
+
+    /**
+     * Runs a list of JavaScript snippets on device in one round trip. Each snippet is evaluated on its own, so an
+     * error of one snippet is logged into its own response lines, and does not stop the rest of the batch.
+     *
+     * @param javaScripts JavaScript snippets, in the order of execution
+     *
+     * @return response lines of each snippet, in the same order as the snippets
+     *
+     * @throws UIAException if there is no response from device, or the app dies
+     */
+    public List<List<String>> runJavaScriptBatch(List<String> javaScripts) {
+        return this.runJavaScriptBatch(javaScripts, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Runs a list of JavaScript snippets on device in one round trip, with one deadline for the whole batch.
+     *
+     * @param javaScripts   JavaScript snippets, in the order of execution
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return response lines of each snippet, in the same order as the snippets
+     *
+     * @throws UIAException if there is no response before deadline, or the app dies
+     */
+    public List<List<String>> runJavaScriptBatch(List<String> javaScripts, long timeoutMillis) {
+        RequestTiming timing = new RequestTiming();
+        return await(sendBatch(javaScripts, timing, timeoutMillis, false), timing);
+    }
+
+    /**
+     * Sends JavaScript to device without waiting for the response. Requests from different threads can be in flight
+     * at the same time, and each response is routed back to its own request.
+     *
+     * @param javaScript JavaScript to run
+     *
+     * @return future of response lines, which fails with UIAException if there is any error
+     */
+    public CompletableFuture<List<String>> runJavaScriptAsync(String javaScript) {
+        return this.runJavaScriptAsync(javaScript, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Sends JavaScript to device without waiting for the response. Cancelling the future drops the script if it is
+     * not handed to device yet.
+     *
+     * @param javaScript    JavaScript to run
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return future of response lines, which fails with UIAException if there is any error, or no response before
+     *         deadline
+     */
+    public CompletableFuture<List<String>> runJavaScriptAsync(String javaScript, long timeoutMillis) {
+        CompletableFuture<List<List<String>>> batch = runJavaScriptBatchAsync(Lists.newArrayList(javaScript),
+            timeoutMillis);
+        CompletableFuture<List<String>> future = batch.thenApply(results -> checkErrors(results.get(0)));
+        future.whenComplete((lines, ex) -> {
+            if (future.isCancelled()) {
+                batch.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends a list of JavaScript snippets to device without waiting for the response.
+     *
+     * @param javaScripts JavaScript snippets, in the order of execution
+     *
+     * @return future of response lines of each snippet
+     */
+    public CompletableFuture<List<List<String>>> runJavaScriptBatchAsync(List<String> javaScripts) {
+        return this.runJavaScriptBatchAsync(javaScripts, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Sends a list of JavaScript snippets to device without waiting for the response.
+     *
+     * @param javaScripts   JavaScript snippets, in the order of execution
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return future of response lines of each snippet
+     */
+    public CompletableFuture<List<List<String>>> runJavaScriptBatchAsync(List<String> javaScripts,
+        long timeoutMillis) {
+        return sendBatch(javaScripts, new RequestTiming(), timeoutMillis, false);
+    }
+
+    /**
+     * Evaluates JavaScript on device, and gets its value posted back by on-device loop. The value is what eval()
+     * returns, such as "true" for "window.buttons()[0].isValid()".
+     *
+     * @param javaScript JavaScript expression, or statements whose last one is an expression
+     *
+     * @return value as a string, objects in JSON, or null if the value is null or undefined
+     *
+     * @throws UIAException if evaluation fails on device, or there is no response
+     */
+    public String evaluate(String javaScript) {
+        return this.evaluate(javaScript, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Evaluates JavaScript on device, and waits for its value no longer than the timeout.
+     *
+     * @param javaScript    JavaScript expression, or statements whose last one is an expression
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return value as a string, objects in JSON, or null if the value is null or undefined
+     *
+     * @throws UIAException if evaluation fails on device, or there is no response before deadline
+     */
+    public String evaluate(String javaScript, long timeoutMillis) {
+        return this.evaluate(javaScript, timeoutMillis, false);
+    }
+
+    /**
+     * Evaluates JavaScript on device, and waits for its value no longer than the timeout. An idempotent expression,
+     * such as "target.model()", is evaluated again if instruments exits and is restarted before the value arrives.
+     *
+     * @param javaScript    JavaScript expression, or statements whose last one is an expression
+     * @param timeoutMillis deadline of the request, from now, including any retry
+     * @param idempotent    true if the expression can safely be evaluated more than once
+     *
+     * @return value as a string, objects in JSON, or null if the value is null or undefined
+     *
+     * @throws UIAException if evaluation fails on device, or there is no response before deadline
+     */
+    public String evaluate(String javaScript, long timeoutMillis, boolean idempotent) {
+        RequestTiming timing = new RequestTiming();
+        JavaScriptResult result = await(sendEvaluation(javaScript, timing, timeoutMillis, idempotent), timing);
+        if (result.isError()) {
+            throw new UIAException("javascript error " + result.getValue());
         }
-        responseQueue.clear();
-        String reqId = UUID.randomUUID().toString();
-        LOG.trace("sending js {}", javaScript);
-        try {
-            javaScriptQueue.offer("UIALogger.logMessage('" + reqId + " start');", JAVASCRIPT_TIMEOUT_SECOND,
-                TimeUnit.SECONDS);
-            javaScriptQueue.offer(javaScript, JAVASCRIPT_TIMEOUT_SECOND, TimeUnit.SECONDS);
-            javaScriptQueue.offer("UIALogger.logMessage('" + reqId + " stop');", JAVASCRIPT_TIMEOUT_SECOND,
-                TimeUnit.SECONDS);
-        } catch (InterruptedException ex) {
-            throw new UIAException("Interrupted", ex);
+        return result.getValue();
+    }
+
+    /**
+     * Sends JavaScript to device for evaluation without waiting for the result.
+     *
+     * @param javaScript JavaScript expression, or statements whose last one is an expression
+     *
+     * @return future of result
+     */
+    public CompletableFuture<JavaScriptResult> evaluateAsync(String javaScript) {
+        return this.evaluateAsync(javaScript, JAVASCRIPT_TIMEOUT_SECOND * 1000L);
+    }
+
+    /**
+     * Sends JavaScript to device for evaluation without waiting for the result.
+     *
+     * @param javaScript    JavaScript expression, or statements whose last one is an expression
+     * @param timeoutMillis deadline of the request, from now
+     *
+     * @return future of result, which fails with UIAException if there is no result before deadline
+     */
+    public CompletableFuture<JavaScriptResult> evaluateAsync(String javaScript, long timeoutMillis) {
+        return sendEvaluation(javaScript, new RequestTiming(), timeoutMillis, false);
+    }
+
+    /**
+     * Cancels all pending requests of this session, such as from a test timeout handler. Callers waiting for a
+     * response get UIAException right away. Scripts not yet handed to device are dropped, and the ones already on
+     * device are left to finish, and their responses are ignored.
+     */
+    public void cancelAll() {
+        demux.cancelAll();
+    }
+
+    /**
+     * Sets a piece of session state, such as target timeout, which is lost when instruments process exits. After an
+     * automatic restart, the JavaScript of all session state is run in the order of first set, before any other
+     * script. Alert handler and other pre-target JavaScript is part of on-device loop, and is always kept. Session
+     * state is cleared on launch.
+     *
+     * @param key        name of the state
+     * @param javaScript JavaScript that restores the state, or null to remove it
+     */
+    public void setSessionState(String key, String javaScript) {
+        synchronized (sessionState) {
+            if (StringUtils.isEmpty(javaScript)) {
+                sessionState.remove(key);
+            } else {
+                sessionState.put(key, javaScript);
+            }
         }
+    }
+
+    public Map<String, String> getSessionState() {
+        synchronized (sessionState) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(sessionState));
+        }
+    }
+
+    /**
+     * Gets the number of automatic restarts of instruments process since last launch.
+     *
+     * @return number of restarts
+     */
+    public int getRestartCount() {
+        return restarts;
+    }
+
+    /**
+     * Gets the generation of UI state, which changes whenever a script that may change UI, that is, any script that
+     * is not idempotent, is sent or done, and whenever instruments is launched or restarted. Things read from device
+     * are still current if the generation has not changed since, unless the app changes UI by itself.
+     *
+     * @return generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    @Override
+    public void postResult(String id, String payload) {
+        LOG.trace("got result {} {}", id, payload);
+        demux.acceptResult(JavaScriptResult.parse(id, payload));
+    }
+
+    @Override
+    public String retrieveJavaScript() throws InterruptedException {
+        int e = epoch;
         while (true) {
-            String res;
-            try {
-                res = this.responseQueue.poll(JAVASCRIPT_TIMEOUT_SECOND, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                throw new UIAException("Interrupted", ex);
+            PendingScript js = javaScriptQueue.take();
+            if (e != epoch) {
+                javaScriptQueue.addFirst(js);
+                return "";
             }
-            if (res == null) {
-                throw new UIAException("no response from device");
+            String javaScript = handOut(js);
+            if (javaScript != null) {
+                metrics.recordSpawn(1);
+                LOG.trace("got js {}", javaScript);
+                return javaScript;
             }
-            LOG.trace(res);
-            if (res.contains(reqId + " start")) {
+        }
+    }
+
+    @Override
+    public List<String> retrieveJavaScripts(int max, long lingerMillis) throws InterruptedException {
+        int e = epoch;
+        List<String> scripts = new ArrayList<>();
+        if (max <= 0) {
+            return scripts;
+        }
+        PendingScript js = javaScriptQueue.poll(JAVASCRIPT_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+        long end = System.currentTimeMillis() + lingerMillis;
+        while (js != null) {
+            if (e != epoch) {
+                javaScriptQueue.addFirst(js);
+                break;
+            }
+            String javaScript = handOut(js);
+            if (javaScript != null) {
+                scripts.add(javaScript);
+            }
+            if (scripts.size() >= max) {
                 break;
             }
+            js = javaScriptQueue.poll(Math.max(0, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
         }
-        List<String> lines = new ArrayList<>();
-        while (true) {
-            String res;
+        metrics.recordSpawn(scripts.size());
+        LOG.trace("got {} js", scripts.size());
+        return scripts;
+    }
+
+    /**
+     * Gets the number of ng client calls made by on-device loop, each of which is a host task spawn on device.
+     *
+     * @return number of ng client calls
+     */
+    public long getSpawnCount() {
+        return metrics.getSpawnCount();
+    }
+
+    /**
+     * Gets the number of JavaScript snippets handed to on-device loop.
+     *
+     * @return number of snippets
+     */
+    public long getScriptCount() {
+        return metrics.getScriptCount();
+    }
+
+    /**
+     * Gets the average number of ng client calls per snippet, including the idle calls with nothing to run.
+     *
+     * @return spawns per snippet, or 0 if no snippet has been run
+     */
+    public double getSpawnsPerCommand() {
+        long scripts = metrics.getScriptCount();
+        return scripts == 0 ? 0 : (double) metrics.getSpawnCount() / scripts;
+    }
+
+    /**
+     * Adds an observer of Instruments output lines, error lines are prefixed with "iERROR ". All lines are delivered
+     * on one thread, in output order. The observer is removed when Instruments disconnects.
+     *
+     * @param observer observer, which gets null as Observable
+     *
+     * @return true
+     *
+     * @deprecated use {@link #subscribeOutput(Consumer, OutputDispatcher.LineType...)}, which never blocks output
+     * reading
+     */
+    @Deprecated
+    public boolean addInstrumentsStreamObserver(Observer observer) {
+        observerSubscriptions.add(output.subscribe((type, line) -> observer.update(null,
+            type == OutputDispatcher.LineType.ERROR ? "iERROR " + line : line)));
+        return true;
+    }
+
+    /**
+     * Subscribes to Instruments output lines. Each subscription is served on its own thread, and is kept across
+     * reconnects of this session. A subscriber that falls behind by more than
+     * {@link OutputDispatcher#SYSPROP_BUFFER_SIZE} lines skips the oldest ones.
+     *
+     * @param listener line listener
+     * @param types    line types, or all types if none is given
+     *
+     * @return subscription, to be closed when no longer needed
+     */
+    public OutputDispatcher.Subscription subscribeOutput(Consumer<String> listener,
+        OutputDispatcher.LineType... types) {
+        return output.subscribe(listener, types);
+    }
+
+    public Path getUiaResultsPath() {
+        return uiaResultsPath;
+    }
+
+    /**
+     * Reports exit of a stand-in of instruments process, the same way as exit of the real process.
+     *
+     * @param reason exit reason
+     */
+    void instrumentsExited(String reason) {
+        this.onInstrumentsExit(instrumentsStreamHandler, reason);
+    }
+
+    int getRmiPort() {
+        return bridge.getRmiPort();
+    }
+
+    /**
+     * Reads output of a stand-in of instruments process, the same way as output of the real process.
+     *
+     * @param stdout standard output of the stand-in
+     */
+    void readInstrumentsOutput(InputStream stdout) {
+        ESH esh = new ESH();
+        instrumentsStreamHandler = esh;
+        Thread t = new Thread(() -> {
             try {
-                res = this.responseQueue.poll(JAVASCRIPT_TIMEOUT_SECOND, TimeUnit.SECONDS);
-            } catch (InterruptedException ex) {
-                throw new UIAException("Interrupted", ex);
+                esh.setProcessOutputStream(stdout);
+            } catch (IOException ex) {
+                LOG.warn("Cannot read instruments output - {}", ex.getMessage());
             }
-            if (res == null) {
-                break;
+        }, "instruments-output-" + uuid);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private CompletableFuture<List<List<String>>> sendBatch(List<String> javaScripts, RequestTiming timing,
+        long timeoutMillis, boolean idempotent) {
+        if (startError != null) {
+            CompletableFuture<List<List<String>>> future = new CompletableFuture<>();
+            future.completeExceptionally(new UIAException("Instruments start error " + startError));
+            return future;
+        }
+        String reqId = UUID.randomUUID().toString();
+        PendingScript js = new PendingScript(reqId, toBatchJavaScript(reqId, javaScripts), timing, timeoutMillis,
+            idempotent);
+        CompletableFuture<List<List<String>>> future = demux.register(reqId, javaScripts.size(), timing);
+        future.whenComplete((results, ex) -> {
+            if (ex == null) {
+                metrics.recordResponse(timing);
+                return;
+            }
+            if (future.isCancelled()) {
+                metrics.recordCancel();
             }
-            if (res.contains(reqId + " start")) {
-                LOG.trace(res);
+            demux.unregister(reqId);
+            javaScriptQueue.remove(js);
+        });
+        this.send(js, future);
+        return future;
+    }
+
+    private CompletableFuture<JavaScriptResult> sendEvaluation(String javaScript, RequestTiming timing,
+        long timeoutMillis, boolean idempotent) {
+        if (startError != null) {
+            CompletableFuture<JavaScriptResult> future = new CompletableFuture<>();
+            future.completeExceptionally(new UIAException("Instruments start error " + startError));
+            return future;
+        }
+        String reqId = UUID.randomUUID().toString();
+        PendingScript js = new PendingScript(reqId, toResultJavaScript(reqId, javaScript), timing, timeoutMillis,
+            idempotent);
+        CompletableFuture<JavaScriptResult> future = demux.registerResult(reqId, timing);
+        future.whenComplete((result, ex) -> {
+            if (ex == null) {
+                metrics.recordResponse(timing);
+                return;
+            }
+            if (future.isCancelled()) {
+                metrics.recordCancel();
+            }
+            demux.unregisterResult(reqId);
+            javaScriptQueue.remove(js);
+        });
+        this.send(js, future);
+        return future;
+    }
+
+    private void send(PendingScript js, CompletableFuture<?> future) {
+        LOG.trace("sending js {}", js.javaScript);
+        metrics.recordRequest();
+        if (!js.idempotent) {
+            generation.incrementAndGet();
+            future.whenComplete((t, ex) -> generation.incrementAndGet());
+        }
+        js.timing.enqueued = System.nanoTime();
+        ScheduledFuture<?> timeout = DEADLINES.schedule(() -> {
+            if (future.completeExceptionally(new UIAException("no response from device"))) {
+                metrics.recordTimeout();
+            }
+        }, Math.max(0, js.deadline - js.timing.enqueued), TimeUnit.NANOSECONDS);
+        pendingScripts.put(js.reqId, js);
+        future.whenComplete((t, ex) -> {
+            timeout.cancel(false);
+            pendingScripts.remove(js.reqId);
+        });
+        javaScriptQueue.add(js);
+    }
+
+    /**
+     * Handles exit of instruments process, unless it is stopped on purpose. The process is restarted in background,
+     * up to {@link #MAX_RESTARTS} times per launch.
+     */
+    private void onInstrumentsExit(ESH esh, String reason) {
+        synchronized (this) {
+            if (esh != instrumentsStreamHandler || instrumentsDog == null || esh.exited) {
+                return;
+            }
+            esh.exited = true;
+            metrics.recordExit();
+            if (startError != null || restarts >= MAX_RESTARTS) {
+                LOG.error("instruments on {} exited - {}", uuid, reason);
+                instrumentsDog = null;
+                javaScriptQueue.clear();
+                demux.failAll(new UIAException("instruments exited - " + reason));
+                return;
+            }
+            restarts++;
+            epoch++;
+            generation.incrementAndGet();
+        }
+        LOG.warn("instruments on {} exited - {}, restart {}/{}", uuid, reason, restarts, MAX_RESTARTS);
+        SUPERVISOR.submit(() -> this.restart(esh, reason));
+    }
+
+    /**
+     * Starts instruments process again. Requests still queued are kept. Requests already handed to the exited process
+     * are queued again if idempotent, or failed otherwise. Session state is replayed ahead of all of them.
+     */
+    private synchronized void restart(ESH esh, String reason) {
+        if (esh != instrumentsStreamHandler || instrumentsDog == null) {
+            LOG.debug("instruments on {} is stopped, skip restart", uuid);
+            return;
+        }
+        UIAException lost = new UIAException("instruments exited - " + reason);
+        List<PendingScript> retries = new ArrayList<>();
+        for (PendingScript js : pendingScripts.values()) {
+            if (js.timing.retrieved == 0) {
                 continue;
             }
-            if (res.contains(reqId + " stop")) {
-                LOG.trace(res);
-                break;
+            if (js.idempotent) {
+                retries.add(js);
             } else {
-                lines.add(res);
-            }
-            if (res.contains(INSTRUMENTS_ERROR) || res.contains(APP_DEAD)) {
-                LOG.error(res);
-                break;
+                demux.fail(js.reqId, lost);
             }
         }
-        javaScriptQueue.clear();
-        Stream<String> err = lines.stream().filter(l -> l.contains(INSTRUMENTS_ERROR) || l.contains(APP_DEAD));
-        if (err.findAny().isPresent()) {
-            throw new UIAException("instruments error " + err);
+        retries.sort(Comparator.comparingLong((PendingScript js) -> js.timing.enqueued).reversed());
+        for (PendingScript js : retries) {
+            LOG.debug("retry js {}", js.reqId);
+            demux.reset(js.reqId);
+            js.timing.retrieved = 0;
+            js.timing.started = 0;
+            javaScriptQueue.addFirst(js);
+            metrics.recordRetry();
+        }
+        this.replaySessionState();
+        instrumentsStreamHandler.detach();
+        try {
+            instrumentsDog = this.startInstrumentsServer(appName);
+            metrics.recordRestart();
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            LOG.error("Cannot restart instruments on {}", uuid, ex);
+            instrumentsDog = null;
+            javaScriptQueue.clear();
+            demux.failAll(new UIAException("Cannot restart instruments", ex));
         }
-        return lines;
     }
 
-    @Override
-    public String retrieveJavaScript() throws InterruptedException {
-        String js = javaScriptQueue.take();
-        LOG.trace("got js {}", js);
-        return js;
+    private void replaySessionState() {
+        List<String> javaScripts;
+        synchronized (sessionState) {
+            javaScripts = new ArrayList<>(sessionState.values());
+        }
+        if (javaScripts.isEmpty()) {
+            return;
+        }
+        RequestTiming timing = new RequestTiming();
+        String reqId = UUID.randomUUID().toString();
+        PendingScript js = new PendingScript(reqId, toBatchJavaScript(reqId, javaScripts), timing,
+            launchTimeoutMillis > 0 ? launchTimeoutMillis : JAVASCRIPT_TIMEOUT_SECOND * 1000L, true);
+        CompletableFuture<List<List<String>>> future = demux.register(reqId, javaScripts.size(), timing);
+        future.whenComplete((results, ex) -> {
+            if (ex != null) {
+                LOG.warn("Cannot replay session state on {} - {}", uuid, ex.getMessage());
+                demux.unregister(reqId);
+                javaScriptQueue.remove(js);
+            }
+        });
+        this.send(js, future);
+        if (javaScriptQueue.removeLastOccurrence(js)) {
+            javaScriptQueue.addFirst(js);
+        }
     }
 
-    public boolean addInstrumentsStreamObserver(Observer observer) {
-        if (this.instrumentsStreamHandler != null) {
-            this.instrumentsStreamHandler.addObserver(observer);
-            return true;
+    /**
+     * Gets the script to hand to device, prefixed with its remaining time to live, or null if its deadline has
+     * passed. Time to live is relative, so that device clock does not need to be in sync with host clock.
+     */
+    private String handOut(PendingScript js) {
+        long now = System.nanoTime();
+        long ttl = TimeUnit.NANOSECONDS.toMillis(js.deadline - now);
+        if (ttl <= 0) {
+            LOG.trace("drop expired js {}", js.javaScript);
+            return null;
         }
-        return false;
+        js.timing.retrieved = now;
+        return "thxCheckTtl(" + ttl + ");\n" + js.javaScript;
     }
 
-    @Override
-    public void update(Observable o, Object arg) {
-        String res = arg.toString();
+    private <T> T await(CompletableFuture<T> future, RequestTiming timing) {
         try {
-            responseQueue.put(res);
+            T t = future.get();
+            metrics.recordCollect(timing, System.nanoTime());
+            return t;
         } catch (InterruptedException ex) {
-            LOG.error("Cannot save instruments response");
+            future.cancel(true);
+            throw new UIAException("Interrupted", ex);
+        } catch (CancellationException ex) {
+            throw new UIAException("Cancelled", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UIAException) {
+                throw (UIAException) ex.getCause();
+            }
+            throw new UIAException("instruments error", ex.getCause());
         }
     }
 
-    public Path getUiaResultsPath() {
-        return uiaResultsPath;
+    private static List<String> checkErrors(List<String> lines) {
+        List<String> errors = lines.stream().filter(l -> l.contains(INSTRUMENTS_ERROR) || l.contains(APP_DEAD))
+            .collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            throw new UIAException("instruments error " + errors);
+        }
+        return lines;
     }
 
-    private NGServer startNailGunServer() throws InterruptedException {
-        NGServer ngs = new NGServer(null, 0);
-        new Thread(ngs).start();
-        Thread.sleep(1000);
-        this.ngPort = ngs.getPort();
-        LOG.trace("ng port {}", this.ngPort);
-        return ngs;
+    /**
+     * Wraps each snippet with start/stop markers and its own try-catch. The marker text is concatenated on device, so
+     * that the debug echo of the script itself does not match a marker. Each snippet is quoted and evaluated on its
+     * own, so a syntax error of one snippet is caught and logged between its own markers, instead of failing the
+     * parse of the whole batch.
+     */
+    private static String toBatchJavaScript(String reqId, List<String> javaScripts) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < javaScripts.size(); i++) {
+            String id = reqId + "-" + i;
+            sb.append("UIALogger.logMessage('").append(id).append("' + ' start');\n")
+                .append("try {\n")
+                .append("  eval(").append(JSONObject.quote(javaScripts.get(i))).append(");\n")
+                .append("} catch(err) {\n")
+                .append("  UIALogger.logError(err.message);\n")
+                .append("}\n")
+                .append("UIALogger.logMessage('").append(id).append("' + ' stop');\n");
+        }
+        return sb.toString();
     }
 
-    private Server startRmiServer() throws IOException, LipeRMIException, InterruptedException {
-        Server rmis = new Server();
-        CallHandler callHandler = new CallHandler();
-        while (true) {
-            try {
-                rmis.bind(rmiPort, callHandler);
-                break;
-            } catch (IOException ex) {
-                LOG.trace("rmi port {} - {}", this.rmiPort, ex.getMessage());
-                this.rmiPort += 1;
-                Utils.sleep(new Random().nextInt(200) + 100L, "wait to try port " + rmiPort);
-            }
-        }
-        LOG.trace("rmi port {}", this.rmiPort);
-        callHandler.registerGlobal(JavaScriptServer.class, this);
-        return rmis;
+    private static String toResultJavaScript(String reqId, String javaScript) {
+        return new StringBuilder()
+            .append("try {\n")
+            .append("  thxPost('").append(reqId).append("', eval(").append(JSONObject.quote(javaScript)).append("));\n")
+            .append("} catch(err) {\n")
+            .append("  thxPostError('").append(reqId).append("', err.message);\n")
+            .append("}\n")
+            .toString();
     }
 
-    private ExecuteWatchdog startInstrumentsServer(String appName) throws IOException, InterruptedException {
+    /**
+     * Starts instruments process to run on-device loop. {@link InstrumentsSimulator} replaces it with a stand-in that
+     * runs without a device.
+     *
+     * @param appName app name
+     *
+     * @return watchdog of the process
+     *
+     * @throws IOException          if process cannot start
+     * @throws InterruptedException if interrupted
+     */
+    protected ExecuteWatchdog startInstrumentsServer(String appName) throws IOException, InterruptedException {
         StringBuilder sb = new StringBuilder()
             .append(this.preTargetJavaScript).append("\n")
+            .append(JavaScriptRuntime.getScript()).append("\n")
+            .append("var thxResults = [];\n")
+            .append("function thxPost(id, value) {\n")
+            .append("  var r = {id: id, type: (value === null || value === undefined) ? 'null' : typeof value};\n")
+            .append("  if (r.type == 'object') {\n")
+            .append("    try {\n")
+            .append("      r.value = JSON.stringify(value);\n")
+            .append("    } catch(err) {\n")
+            .append("      r.value = String(value);\n")
+            .append("    }\n")
+            .append("  } else if (r.type != 'null') {\n")
+            .append("    r.value = String(value);\n")
+            .append("  }\n")
+            .append("  thxResults.push(r);\n")
+            .append("}\n")
+            .append("function thxPostError(id, message) {\n")
+            .append("  thxResults.push({id: id, type: 'error', value: String(message)});\n")
+            .append("}\n")
+            .append("function thxBytes(s) {\n")
+            .append("  var n = 0;\n")
+            .append("  for (var i = 0; i < s.length; i++) {\n")
+            .append("    var c = s.charCodeAt(i);\n")
+            .append("    var d = s.charCodeAt(i + 1);\n")
+            .append("    if (c >= 0xd800 && c < 0xdc00 && d >= 0xdc00 && d < 0xe000) {\n")
+            .append("      n += 4;\n")
+            .append("      i++;\n")
+            .append("    } else {\n")
+            .append("      n += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("  return n;\n")
+            .append("}\n")
+            .append("function thxTakeResults(max) {\n")
+            .append("  var taken = [], n = 2;\n")
+            .append("  while (thxResults.length > 0) {\n")
+            .append("    var r = thxResults[0], b = thxBytes(JSON.stringify(r)) + 1;\n")
+            .append("    if (b + 2 > max) {\n")
+            .append("      thxResults[0] = {id: r.id, type: 'error', value: 'result of ' + b + ' bytes is over '")
+            .append(" + max};\n")
+            .append("      continue;\n")
+            .append("    }\n")
+            .append("    if (n + b > max) {\n")
+            .append("      break;\n")
+            .append("    }\n")
+            .append("    taken.push(thxResults.shift());\n")
+            .append("    n += b;\n")
+            .append("  }\n")
+            .append("  return taken;\n")
+            .append("}\n")
+            .append("function thxFailResults(posted, message) {\n")
+            .append("  var failed = [];\n")
+            .append("  for (var i = 0; i < posted.length; i++) {\n")
+            .append("    if (posted[i].failed) {\n")
+            .append("      UIALogger.logError('cannot post result of ' + posted[i].id);\n")
+            .append("    } else {\n")
+            .append("      failed.push({id: posted[i].id, type: 'error', value: message, failed: true});\n")
+            .append("    }\n")
+            .append("  }\n")
+            .append("  thxResults = failed.concat(thxResults);\n")
+            .append("}\n")
+            .append("var thxReceived = 0;\n")
+            .append("function thxCheckTtl(ttl) {\n")
+            .append("  if (new Date().getTime() - thxReceived > ttl) {\n")
+            .append("    throw new Error('script expired after ' + ttl + ' ms');\n")
+            .append("  }\n")
+            .append("}\n")
             .append("while (1) {\n")
             .append("  var target = UIATarget.localTarget();\n")
             .append("  var host = target.host();\n")
             .append("  var app = target.frontMostApp();\n")
             .append("  var window = app.mainWindow();\n")
-            .append("  var js = host.performTaskWithPathArgumentsTimeout('").append(JavaScriptNail.NG_CLIENT)
-            .append("', ['--nailgun-port', '").append(ngPort).append("', '").append(JavaScriptNail.class.getName())
-            .append("', '").append(rmiPort).append("'], 10000);\n")
-            .append("  UIALogger.logDebug(js.stdout);\n")
+            .append("  var thxPosting = thxTakeResults(").append(JAVASCRIPT_POST_MAX_BYTES).append(");\n")
+            .append("  var thxJs = {exitCode: -1, stdout: ''};\n")
             .append("  try {\n")
-            .append("    var res = eval(js.stdout);\n")
+            .append("    thxJs = host.performTaskWithPathArgumentsTimeout('").append(JavaScriptNail.NG_CLIENT)
+            .append("', ['--nailgun-port', '").append(bridge.getNgPort()).append("', '")
+            .append(JavaScriptNail.class.getName()).append("', '").append(bridge.getRmiPort())
+            .append("', '").append(uuid).append("', thxResults.length > 0 ? '0' : '").append(JAVASCRIPT_DRAIN_MAX)
+            .append("', '").append(JAVASCRIPT_DRAIN_LINGER_MILLIS).append("', JSON.stringify(thxPosting)], 10000);\n")
             .append("  } catch(err) {\n")
-            .append("    UIALogger.logError(err.message);\n")
+            .append("    UIALogger.logDebug(err.message);\n")
+            .append("  }\n")
+            .append("  thxReceived = new Date().getTime();\n")
+            .append("  if (thxJs.exitCode != 0) {\n")
+            .append("    thxFailResults(thxPosting, 'cannot post result, ng exit code ' + thxJs.exitCode);\n")
+            .append("  }\n")
+            .append("  var thxScripts = [];\n")
+            .append("  try {\n")
+            .append("    thxScripts = JSON.parse(thxJs.stdout);\n")
+            .append("  } catch(err) {\n")
+            .append("    UIALogger.logDebug(thxJs.stdout);\n")
+            .append("  }\n")
+            .append("  for (var thxI = 0; thxI < thxScripts.length; thxI++) {\n")
+            .append("    app = target.frontMostApp();\n")
+            .append("    window = app.mainWindow();\n")
+            .append("    UIALogger.logDebug(thxScripts[thxI]);\n")
+            .append("    try {\n")
+            .append("      var res = eval(thxScripts[thxI]);\n")
+            .append("    } catch(err) {\n")
+            .append("      UIALogger.logError(err.message);\n")
+            .append("    }\n")
             .append("  }\n")
             .append("}\n");
         File js = File.createTempFile("instruments-", ".js");
@@ -324,9 +1128,8 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
         Executor executor = new DefaultExecutor();
         executor.setWatchdog(watchdog);
         instrumentsStreamHandler = new ESH();
-        instrumentsStreamHandler.addObserver(this);
         executor.setStreamHandler(instrumentsStreamHandler);
-        executor.execute(cmdLine, new DefaultExecuteResultHandler());
+        executor.execute(cmdLine, new ProcessResultHandler(instrumentsStreamHandler));
         return watchdog;
     }
 
@@ -341,7 +1144,14 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
         "Attempting to change event horizon while disengage"
     });
 
-    private class ESH extends Observable implements ExecuteStreamHandler {
+    /**
+     * Reader of instruments process output. Lines are routed to requests right on the reader thread, and then
+     * published to subscribers, which never block the reader.
+     */
+    private class ESH implements ExecuteStreamHandler {
+        private volatile boolean detached;
+
+        private boolean exited;
 
         @Override
         public void setProcessInputStream(OutputStream out) throws IOException {
@@ -356,18 +1166,16 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
                     break;
                 }
                 if (isErrorToStart(line)) {
-                    try {
-                        Instruments.this.responseQueue.put(INSTRUMENTS_POISON);
-                    } catch (InterruptedException ex) {
-                        LOG.error("interrupted", ex);
-                    }
+                    Instruments.this.startError = line;
+                    Instruments.this.metrics.recordStartError();
+                    Instruments.this.demux.failAll(new UIAException("Instruments start error " + line));
                 }
                 if (isError(line)) {
                     LOG.error(line);
-                    this.notifyObserversX("iERROR " + line);
+                    this.dispatch(OutputDispatcher.LineType.ERROR, line);
                 } else {
                     LOG.warn(line);
-                    this.notifyObserversX(line);
+                    this.dispatch(OutputDispatcher.LineType.WARNING, line);
                 }
             }
         }
@@ -381,7 +1189,7 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
                     break;
                 }
                 LOG.trace(line);
-                this.notifyObserversX(line);
+                this.dispatch(OutputDispatcher.LineType.OUTPUT, line);
             }
         }
 
@@ -401,10 +1209,68 @@ public class Instruments extends EntityCommunication implements JavaScriptServer
             return WARNINGS.stream().noneMatch((warn) -> (line.contains(warn)));
         }
 
-        private void notifyObserversX(String line) {
-            this.setChanged();
-            this.notifyObservers(line);
-            this.clearChanged();
+        /**
+         * Stops dispatching, such as after the process is stopped, while its remaining output is still read.
+         */
+        void detach() {
+            detached = true;
+        }
+
+        private void dispatch(OutputDispatcher.LineType type, String line) {
+            if (detached) {
+                return;
+            }
+            if (line.contains(APP_DEAD)) {
+                Instruments.this.metrics.recordAppDead();
+            }
+            Instruments.this.demux.accept(type == OutputDispatcher.LineType.ERROR ? "iERROR " + line : line);
+            Instruments.this.output.publish(type, line);
+        }
+    }
+
+    /**
+     * Reports exit of instruments process as soon as it happens.
+     */
+    private class ProcessResultHandler extends DefaultExecuteResultHandler {
+        private final ESH esh;
+
+        ProcessResultHandler(ESH esh) {
+            this.esh = esh;
+        }
+
+        @Override
+        public void onProcessComplete(int exitValue) {
+            super.onProcessComplete(exitValue);
+            Instruments.this.onInstrumentsExit(esh, "exit value " + exitValue);
+        }
+
+        @Override
+        public void onProcessFailed(ExecuteException ex) {
+            super.onProcessFailed(ex);
+            Instruments.this.onInstrumentsExit(esh, ex.getMessage());
+        }
+    }
+
+    /**
+     * JavaScript waiting in queue to be handed to ng client, with the timing of its request.
+     */
+    private static class PendingScript {
+        private final String reqId;
+
+        private final String javaScript;
+
+        private final RequestTiming timing;
+
+        private final long deadline;
+
+        private final boolean idempotent;
+
+        PendingScript(String reqId, String javaScript, RequestTiming timing, long timeoutMillis, boolean idempotent) {
+            this.reqId = reqId;
+            this.javaScript = javaScript;
+            this.timing = timing;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.idempotent = idempotent;
         }
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.martiansoftware.nailgun.NGServer;
+import com.tascape.qa.th.ios.model.UIAException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import net.sf.lipermi.exception.LipeRMIException;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.net.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One ng server and one rmi server per host JVM, shared by the Instruments sessions of all devices. Each session
+ * registers with its device uuid, and on-device loops pass the uuid with every call, see {@link JavaScriptNail}.
+ * Both servers bind to ephemeral ports, so that starting many devices at the same time does not probe for ports.
+ *
+ * @author linsong wang
+ */
+public class InstrumentsBridge implements JavaScriptBridge {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentsBridge.class);
+
+    private static final long START_TIMEOUT_MILLIS = 10000;
+
+    private static final int BIND_TRIES = 10;
+
+    private static InstrumentsBridge instance;
+
+    private final Map<String, JavaScriptServer> sessions = new ConcurrentHashMap<>();
+
+    private NGServer ngServer;
+
+    private Server rmiServer;
+
+    private int ngPort;
+
+    private int rmiPort;
+
+    /**
+     * Gets the bridge of this host, which is started the first time.
+     *
+     * @return started bridge
+     *
+     * @throws UIAException if ng or rmi server cannot start
+     */
+    public static synchronized InstrumentsBridge getInstance() {
+        if (instance == null) {
+            InstrumentsBridge bridge = new InstrumentsBridge();
+            bridge.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(bridge::stop));
+            instance = bridge;
+        }
+        return instance;
+    }
+
+    private InstrumentsBridge() {
+    }
+
+    /**
+     * Registers the session of a device, which replaces the previous session of the same device, if any.
+     *
+     * @param uuid    device uuid
+     * @param session session to route calls of on-device loop to
+     */
+    public void register(String uuid, JavaScriptServer session) {
+        JavaScriptServer old = sessions.put(uuid, session);
+        if (old != null && old != session) {
+            LOG.warn("Replace session of {}", uuid);
+        }
+    }
+
+    /**
+     * Unregisters the session of a device, if it is still the registered one.
+     *
+     * @param uuid    device uuid
+     * @param session session to unregister
+     */
+    public void unregister(String uuid, JavaScriptServer session) {
+        sessions.remove(uuid, session);
+    }
+
+    /**
+     * Gets uuids of devices with a registered session.
+     *
+     * @return device uuids
+     */
+    public List<String> getDevices() {
+        return Collections.unmodifiableList(new ArrayList<>(sessions.keySet()));
+    }
+
+    public int getNgPort() {
+        return ngPort;
+    }
+
+    public int getRmiPort() {
+        return rmiPort;
+    }
+
+    @Override
+    public List<String> retrieveJavaScripts(String uuid, int max, long lingerMillis) throws InterruptedException {
+        JavaScriptServer session = sessions.get(uuid);
+        if (session == null) {
+            LOG.debug("No session of {}", uuid);
+            return Collections.emptyList();
+        }
+        return session.retrieveJavaScripts(max, lingerMillis);
+    }
+
+    @Override
+    public void postResult(String uuid, String id, String payload) {
+        JavaScriptServer session = sessions.get(uuid);
+        if (session == null) {
+            LOG.debug("No session of {}, drop result {}", uuid, id);
+            return;
+        }
+        session.postResult(id, payload);
+    }
+
+    private void start() {
+        try {
+            this.startNailGunServer();
+            this.startRmiServer();
+        } catch (IOException | LipeRMIException | InterruptedException ex) {
+            this.stop();
+            throw new UIAException("Cannot start instruments bridge", ex);
+        }
+        LOG.debug("Instruments bridge ng port {}, rmi port {}", ngPort, rmiPort);
+    }
+
+    private void stop() {
+        if (ngServer != null) {
+            ngServer.shutdown(false);
+        }
+        if (rmiServer != null) {
+            rmiServer.close();
+        }
+    }
+
+    /**
+     * Starts ng server on an ephemeral port, and waits until it is bound to learn the port.
+     */
+    private void startNailGunServer() throws InterruptedException {
+        ngServer = new NGServer(null, 0);
+        Thread t = new Thread(ngServer, "instruments-bridge-ng");
+        t.setDaemon(true);
+        t.start();
+        long end = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while ((ngPort = ngServer.getPort()) == 0) {
+            if (System.currentTimeMillis() > end) {
+                throw new UIAException("ng server does not start in " + START_TIMEOUT_MILLIS + " ms");
+            }
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+    /**
+     * Starts rmi server on a port just released by the system. The server cannot report the port it binds to, so a
+     * free port is taken first, and taken again if another process grabs it in between.
+     */
+    private void startRmiServer() throws IOException, LipeRMIException {
+        CallHandler callHandler = new CallHandler();
+        callHandler.registerGlobal(JavaScriptBridge.class, this);
+        for (int i = 1;; i++) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            Server rmis = new Server();
+            try {
+                rmis.bind(port, callHandler);
+                rmiServer = rmis;
+                rmiPort = port;
+                return;
+            } catch (IOException ex) {
+                LOG.trace("rmi port {} - {}", port, ex.getMessage());
+                if (i >= BIND_TRIES) {
+                    throw ex;
+                }
+            }
+        }
+    }
+}
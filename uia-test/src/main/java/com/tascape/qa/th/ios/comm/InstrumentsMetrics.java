@@ -0,0 +1,529 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency and error counters of the JavaScript bridge of one device, kept across Instruments sessions of the device.
+ * Each request is timed in phases,
+ * <ul>
+ * <li>QUEUE, from request sent to handed to ng client by {@link JavaScriptServer#retrieveJavaScripts(int, long)}</li>
+ * <li>HANDOFF, from handed to ng client to its first start marker in Instruments output</li>
+ * <li>DEVICE, from first start marker to last stop marker, or from handed to ng client to result posted back for
+ * evaluation requests</li>
+ * <li>COLLECT, from last stop marker or result posted back, to the waiting caller resumes, not recorded for async
+ * requests</li>
+ * <li>TOTAL, from request sent to last stop marker or result posted back</li>
+ * </ul>
+ *
+ * @author linsong wang
+ */
+public class InstrumentsMetrics implements InstrumentsMetricsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentsMetrics.class);
+
+    public static final String OBJECT_NAME = "com.tascape.qa.th.ios:type=Instruments,uuid=";
+
+    private static final Map<String, InstrumentsMetrics> METRICS = new ConcurrentHashMap<>();
+
+    public enum Phase {
+        QUEUE, HANDOFF, DEVICE, COLLECT, TOTAL
+    }
+
+    private final String uuid;
+
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private final AtomicLong cancelCount = new AtomicLong();
+
+    private final AtomicLong startErrorCount = new AtomicLong();
+
+    private final AtomicLong appDeadCount = new AtomicLong();
+
+    private final AtomicLong spawnCount = new AtomicLong();
+
+    private final AtomicLong scriptCount = new AtomicLong();
+
+    private final AtomicLong exitCount = new AtomicLong();
+
+    private final AtomicLong restartCount = new AtomicLong();
+
+    private final AtomicLong retryCount = new AtomicLong();
+
+    private final AtomicLong treeCacheHitCount = new AtomicLong();
+
+    private final AtomicLong treeCacheMissCount = new AtomicLong();
+
+    /**
+     * Gets metrics of a device, which is registered as an MBean the first time.
+     *
+     * @param uuid device uuid
+     *
+     * @return metrics of the device
+     */
+    public static InstrumentsMetrics forDevice(String uuid) {
+        return METRICS.computeIfAbsent(uuid, u -> {
+            InstrumentsMetrics metrics = new InstrumentsMetrics(u);
+            metrics.register();
+            return metrics;
+        });
+    }
+
+    /**
+     * Gets metrics of all devices seen so far.
+     *
+     * @return metrics by device uuid
+     */
+    public static Map<String, InstrumentsMetrics> getAll() {
+        return Collections.unmodifiableMap(METRICS);
+    }
+
+    private InstrumentsMetrics(String uuid) {
+        this.uuid = uuid;
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Gets the latency histogram of a phase.
+     *
+     * @param phase phase of request
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms.get(phase);
+    }
+
+    /**
+     * Takes a point-in-time copy of all counters and histograms.
+     *
+     * @return snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public long getCancelCount() {
+        return cancelCount.get();
+    }
+
+    /**
+     * Gets the number of Instruments start errors, which fail all pending requests of the device.
+     *
+     * @return number of start errors
+     */
+    @Override
+    public long getStartErrorCount() {
+        return startErrorCount.get();
+    }
+
+    @Override
+    public long getAppDeadCount() {
+        return appDeadCount.get();
+    }
+
+    @Override
+    public long getSpawnCount() {
+        return spawnCount.get();
+    }
+
+    @Override
+    public long getScriptCount() {
+        return scriptCount.get();
+    }
+
+    /**
+     * Gets the number of unexpected exits of Instruments process.
+     *
+     * @return number of exits
+     */
+    @Override
+    public long getExitCount() {
+        return exitCount.get();
+    }
+
+    @Override
+    public long getRestartCount() {
+        return restartCount.get();
+    }
+
+    /**
+     * Gets the number of idempotent requests run again after Instruments restarts.
+     *
+     * @return number of retries
+     */
+    @Override
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Gets the number of element tree reads served from cache, without a round trip to device.
+     *
+     * @return number of hits
+     */
+    @Override
+    public long getTreeCacheHitCount() {
+        return treeCacheHitCount.get();
+    }
+
+    /**
+     * Gets the number of element tree reads that load and parse the tree from device.
+     *
+     * @return number of misses
+     */
+    @Override
+    public long getTreeCacheMissCount() {
+        return treeCacheMissCount.get();
+    }
+
+    @Override
+    public double getQueueP50Millis() {
+        return histograms.get(Phase.QUEUE).getPercentileMillis(50);
+    }
+
+    @Override
+    public double getQueueP95Millis() {
+        return histograms.get(Phase.QUEUE).getPercentileMillis(95);
+    }
+
+    @Override
+    public double getQueueP99Millis() {
+        return histograms.get(Phase.QUEUE).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getHandoffP50Millis() {
+        return histograms.get(Phase.HANDOFF).getPercentileMillis(50);
+    }
+
+    @Override
+    public double getHandoffP95Millis() {
+        return histograms.get(Phase.HANDOFF).getPercentileMillis(95);
+    }
+
+    @Override
+    public double getHandoffP99Millis() {
+        return histograms.get(Phase.HANDOFF).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getDeviceP50Millis() {
+        return histograms.get(Phase.DEVICE).getPercentileMillis(50);
+    }
+
+    @Override
+    public double getDeviceP95Millis() {
+        return histograms.get(Phase.DEVICE).getPercentileMillis(95);
+    }
+
+    @Override
+    public double getDeviceP99Millis() {
+        return histograms.get(Phase.DEVICE).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getCollectP50Millis() {
+        return histograms.get(Phase.COLLECT).getPercentileMillis(50);
+    }
+
+    @Override
+    public double getCollectP95Millis() {
+        return histograms.get(Phase.COLLECT).getPercentileMillis(95);
+    }
+
+    @Override
+    public double getCollectP99Millis() {
+        return histograms.get(Phase.COLLECT).getPercentileMillis(99);
+    }
+
+    @Override
+    public double getTotalP50Millis() {
+        return histograms.get(Phase.TOTAL).getPercentileMillis(50);
+    }
+
+    @Override
+    public double getTotalP95Millis() {
+        return histograms.get(Phase.TOTAL).getPercentileMillis(95);
+    }
+
+    @Override
+    public double getTotalP99Millis() {
+        return histograms.get(Phase.TOTAL).getPercentileMillis(99);
+    }
+
+    @Override
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        requestCount.set(0);
+        timeoutCount.set(0);
+        cancelCount.set(0);
+        startErrorCount.set(0);
+        appDeadCount.set(0);
+        spawnCount.set(0);
+        scriptCount.set(0);
+        exitCount.set(0);
+        restartCount.set(0);
+        retryCount.set(0);
+        treeCacheHitCount.set(0);
+        treeCacheMissCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("instruments ").append(uuid)
+            .append(" requests ").append(requestCount.get())
+            .append(", timeouts ").append(timeoutCount.get())
+            .append(", start errors ").append(startErrorCount.get())
+            .append(", app dead ").append(appDeadCount.get())
+            .append(", exits ").append(exitCount.get())
+            .append(", restarts ").append(restartCount.get())
+            .append(", retries ").append(retryCount.get())
+            .append(", tree cache hits ").append(treeCacheHitCount.get())
+            .append(", misses ").append(treeCacheMissCount.get());
+        histograms.forEach((phase, h) -> sb.append("\n  ").append(phase).append(" ").append(h.snapshot()));
+        return sb.toString();
+    }
+
+    void recordRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    void recordTimeout() {
+        timeoutCount.incrementAndGet();
+    }
+
+    void recordCancel() {
+        cancelCount.incrementAndGet();
+    }
+
+    void recordStartError() {
+        startErrorCount.incrementAndGet();
+    }
+
+    void recordAppDead() {
+        appDeadCount.incrementAndGet();
+    }
+
+    void recordExit() {
+        exitCount.incrementAndGet();
+    }
+
+    void recordRestart() {
+        restartCount.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retryCount.incrementAndGet();
+    }
+
+    /**
+     * Records an element tree read, by the driver that caches element trees.
+     *
+     * @param hit true if served from cache
+     */
+    public void recordTreeCache(boolean hit) {
+        (hit ? treeCacheHitCount : treeCacheMissCount).incrementAndGet();
+    }
+
+    void recordSpawn(int scripts) {
+        spawnCount.incrementAndGet();
+        scriptCount.addAndGet(scripts);
+    }
+
+    /**
+     * Records phases of a request whose response has arrived. A phase is skipped if any of its timestamps is missing.
+     */
+    void recordResponse(RequestTiming timing) {
+        record(Phase.QUEUE, timing.enqueued, timing.retrieved);
+        record(Phase.TOTAL, timing.enqueued, timing.stopped);
+        if (timing.started > 0) {
+            record(Phase.HANDOFF, timing.retrieved, timing.started);
+            record(Phase.DEVICE, timing.started, timing.stopped);
+        } else {
+            record(Phase.DEVICE, timing.retrieved, timing.stopped);
+        }
+    }
+
+    /**
+     * Records the time for a waiting caller to resume after its response has arrived.
+     */
+    void recordCollect(RequestTiming timing, long resumed) {
+        record(Phase.COLLECT, timing.stopped, resumed);
+    }
+
+    private void record(Phase phase, long from, long to) {
+        if (from > 0 && to > 0) {
+            histograms.get(phase).record(to - from);
+        }
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME + ObjectName.quote(uuid));
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException ex) {
+            LOG.warn("Cannot register metrics of {} - {}", uuid, ex.getMessage());
+        }
+    }
+
+    /**
+     * Point-in-time copy of metrics of a device.
+     */
+    public static class Snapshot {
+        private final String uuid;
+
+        private final long timestamp = System.currentTimeMillis();
+
+        private final long requestCount;
+
+        private final long timeoutCount;
+
+        private final long cancelCount;
+
+        private final long startErrorCount;
+
+        private final long appDeadCount;
+
+        private final long spawnCount;
+
+        private final long scriptCount;
+
+        private final long exitCount;
+
+        private final long restartCount;
+
+        private final long retryCount;
+
+        private final long treeCacheHitCount;
+
+        private final long treeCacheMissCount;
+
+        private final Map<Phase, LatencyHistogram.Snapshot> phases = new EnumMap<>(Phase.class);
+
+        private Snapshot(InstrumentsMetrics metrics) {
+            this.uuid = metrics.uuid;
+            this.requestCount = metrics.getRequestCount();
+            this.timeoutCount = metrics.getTimeoutCount();
+            this.cancelCount = metrics.getCancelCount();
+            this.startErrorCount = metrics.getStartErrorCount();
+            this.appDeadCount = metrics.getAppDeadCount();
+            this.spawnCount = metrics.getSpawnCount();
+            this.scriptCount = metrics.getScriptCount();
+            this.exitCount = metrics.getExitCount();
+            this.restartCount = metrics.getRestartCount();
+            this.retryCount = metrics.getRetryCount();
+            this.treeCacheHitCount = metrics.getTreeCacheHitCount();
+            this.treeCacheMissCount = metrics.getTreeCacheMissCount();
+            metrics.histograms.forEach((phase, h) -> phases.put(phase, h.snapshot()));
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        public long getCancelCount() {
+            return cancelCount;
+        }
+
+        public long getStartErrorCount() {
+            return startErrorCount;
+        }
+
+        public long getAppDeadCount() {
+            return appDeadCount;
+        }
+
+        public long getSpawnCount() {
+            return spawnCount;
+        }
+
+        public long getScriptCount() {
+            return scriptCount;
+        }
+
+        public long getExitCount() {
+            return exitCount;
+        }
+
+        public long getRestartCount() {
+            return restartCount;
+        }
+
+        public long getRetryCount() {
+            return retryCount;
+        }
+
+        public long getTreeCacheHitCount() {
+            return treeCacheHitCount;
+        }
+
+        public long getTreeCacheMissCount() {
+            return treeCacheMissCount;
+        }
+
+        public LatencyHistogram.Snapshot getPhase(Phase phase) {
+            return phases.get(phase);
+        }
+    }
+}
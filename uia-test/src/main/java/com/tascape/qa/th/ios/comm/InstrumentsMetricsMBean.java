@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+/**
+ * JMX view of {@link InstrumentsMetrics}, registered as "com.tascape.qa.th.ios:type=Instruments,uuid=...".
+ *
+ * @author linsong wang
+ */
+public interface InstrumentsMetricsMBean {
+
+    String getUuid();
+
+    long getRequestCount();
+
+    long getTimeoutCount();
+
+    long getCancelCount();
+
+    long getStartErrorCount();
+
+    long getAppDeadCount();
+
+    long getSpawnCount();
+
+    long getScriptCount();
+
+    long getExitCount();
+
+    long getRestartCount();
+
+    long getRetryCount();
+
+    long getTreeCacheHitCount();
+
+    long getTreeCacheMissCount();
+
+    double getQueueP50Millis();
+
+    double getQueueP95Millis();
+
+    double getQueueP99Millis();
+
+    double getHandoffP50Millis();
+
+    double getHandoffP95Millis();
+
+    double getHandoffP99Millis();
+
+    double getDeviceP50Millis();
+
+    double getDeviceP95Millis();
+
+    double getDeviceP99Millis();
+
+    double getCollectP50Millis();
+
+    double getCollectP95Millis();
+
+    double getCollectP99Millis();
+
+    double getTotalP50Millis();
+
+    double getTotalP95Millis();
+
+    double getTotalP99Millis();
+
+    void reset();
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.tascape.qa.th.SystemConfiguration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one Instruments session per device. With warm standby enabled, a released session is started again in
+ * background, so that the next launch of the same app on the same device does not wait for Instruments cold start.
+ * Without warm standby, a released session is parked disconnected, and stays registered with the host-wide
+ * {@link InstrumentsBridge}.
+ *
+ * @author linsong wang
+ */
+public class InstrumentsSessionManager {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentsSessionManager.class);
+
+    public static final String SYSPROP_WARM_STANDBY = "qa.th.comm.ios.WARM_STANDBY";
+
+    public static final boolean WARM_STANDBY
+        = SystemConfiguration.getInstance().getBooleanProperty(SYSPROP_WARM_STANDBY, false);
+
+    private static final InstrumentsSessionManager INSTANCE = new InstrumentsSessionManager();
+
+    private final Map<String, Standby> standbys = new ConcurrentHashMap<>();
+
+    private final ExecutorService warmer = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "instruments-warmer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong waitCount = new AtomicLong();
+
+    private final AtomicLong waitMillis = new AtomicLong();
+
+    private final AtomicLong coldStartCount = new AtomicLong();
+
+    private final AtomicLong coldStartMillis = new AtomicLong();
+
+    private final AtomicLong lastColdStartMillis = new AtomicLong();
+
+    public static InstrumentsSessionManager getInstance() {
+        return INSTANCE;
+    }
+
+    private InstrumentsSessionManager() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    }
+
+    /**
+     * Gets a session with the app started. A warm session of the same app and pre-target JavaScript is handed over
+     * right away, or after its background start finishes, waiting no longer than a launch would take. A warm session
+     * of another app or pre-target JavaScript is cancelled and shut down right away. Otherwise, Instruments is cold
+     * started.
+     *
+     * @param uuid                device uuid
+     * @param appName             app name
+     * @param preTargetJavaScript JavaScript to run before on-device loop, such as alert handler
+     * @param tries               number of tries of instruments command
+     * @param delayMillis         wait for app to start
+     * @param timeoutMillis       wait for app element on each try
+     *
+     * @return a started session
+     *
+     * @throws Exception if app does not launch
+     */
+    public Instruments acquire(String uuid, String appName, String preTargetJavaScript, int tries, int delayMillis,
+        long timeoutMillis) throws Exception {
+        Standby standby = standbys.remove(uuid);
+        Instruments instruments = null;
+        if (standby != null) {
+            if (standby.warming != null && standby.matches(appName, preTargetJavaScript)) {
+                boolean ready = standby.warming.isDone();
+                long start = System.currentTimeMillis();
+                if (standby.await(tries * (delayMillis + timeoutMillis))) {
+                    if (ready) {
+                        hitCount.incrementAndGet();
+                    } else {
+                        waitCount.incrementAndGet();
+                        waitMillis.addAndGet(System.currentTimeMillis() - start);
+                    }
+                    LOG.debug("Use warm session of app {} on {}", appName, uuid);
+                    return standby.instruments;
+                }
+            }
+            if (standby.warming == null && standby.instruments.getAppName().equals(appName)) {
+                instruments = standby.instruments;
+            } else {
+                standby.discard();
+            }
+        }
+        missCount.incrementAndGet();
+        if (instruments == null) {
+            instruments = new Instruments(uuid, appName);
+        }
+        instruments.setPreTargetJavaScript(preTargetJavaScript);
+        long start = System.currentTimeMillis();
+        instruments.launch(tries, delayMillis, timeoutMillis);
+        this.recordColdStart(System.currentTimeMillis() - start);
+        return instruments;
+    }
+
+    /**
+     * Hands a session back after use. With warm standby, the app is started again in background.
+     *
+     * @param instruments session to release
+     */
+    public void release(Instruments instruments) {
+        Standby standby = new Standby(instruments);
+        if (WARM_STANDBY) {
+            standby.warming = warmer.submit(() -> {
+                long start = System.currentTimeMillis();
+                instruments.relaunch();
+                this.recordColdStart(System.currentTimeMillis() - start);
+                return true;
+            });
+        } else {
+            instruments.disconnect();
+        }
+        Standby old = standbys.put(instruments.getUuid(), standby);
+        if (old != null && old.instruments != instruments) {
+            old.discard();
+        }
+    }
+
+    /**
+     * Checks if there is a warm session, started or being started, of the app on the device.
+     *
+     * @param uuid                device uuid
+     * @param appName             app name
+     * @param preTargetJavaScript JavaScript to run before on-device loop
+     *
+     * @return true if the next acquire of the same app will not cold start Instruments
+     */
+    public boolean hasWarmSession(String uuid, String appName, String preTargetJavaScript) {
+        Standby standby = standbys.get(uuid);
+        return standby != null && standby.warming != null && standby.matches(appName, preTargetJavaScript);
+    }
+
+    /**
+     * Shuts down the session of a device, if any.
+     *
+     * @param uuid device uuid
+     */
+    public void shutdown(String uuid) {
+        Standby standby = standbys.remove(uuid);
+        if (standby != null) {
+            standby.discard();
+        }
+    }
+
+    /**
+     * Gets the number of acquires that got a warm session already started.
+     *
+     * @return number of hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of acquires that got a warm session after waiting for its background start to finish, which
+     * are not counted as hits.
+     *
+     * @return number of waits
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Gets the total time acquires waited for background starts, see {@link #getWaitCount()}.
+     *
+     * @return wait time in millis
+     */
+    public long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    /**
+     * Gets the number of acquires that started Instruments in foreground.
+     *
+     * @return number of misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of Instruments starts, in foreground on a miss, or in background for warm standby.
+     *
+     * @return number of starts
+     */
+    public long getColdStartCount() {
+        return coldStartCount.get();
+    }
+
+    public long getAverageColdStartMillis() {
+        long count = coldStartCount.get();
+        return count == 0 ? 0 : coldStartMillis.get() / count;
+    }
+
+    public long getLastColdStartMillis() {
+        return lastColdStartMillis.get();
+    }
+
+    private void recordColdStart(long millis) {
+        LOG.debug("Instruments cold start {} ms", millis);
+        coldStartCount.incrementAndGet();
+        coldStartMillis.addAndGet(millis);
+        lastColdStartMillis.set(millis);
+    }
+
+    private void shutdown() {
+        standbys.keySet().forEach(this::shutdown);
+    }
+
+    private static class Standby {
+        private final Instruments instruments;
+
+        private final String appName;
+
+        private final String preTargetJavaScript;
+
+        private Future<Boolean> warming;
+
+        Standby(Instruments instruments) {
+            this.instruments = instruments;
+            this.appName = instruments.getAppName();
+            this.preTargetJavaScript = instruments.getPreTargetJavaScript();
+        }
+
+        boolean matches(String appName, String preTargetJavaScript) {
+            return this.appName.equals(appName) && Objects.equals(this.preTargetJavaScript, preTargetJavaScript);
+        }
+
+        /**
+         * Waits for background start, if any.
+         *
+         * @param timeoutMillis max time to wait
+         *
+         * @return true if app is started
+         */
+        boolean await(long timeoutMillis) throws InterruptedException {
+            if (warming == null) {
+                return false;
+            }
+            try {
+                return warming.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                LOG.warn("Cannot start warm session of app {} - {}", appName, ex.getCause().getMessage());
+                return false;
+            } catch (CancellationException | TimeoutException ex) {
+                LOG.warn("Warm session of app {} is not started in {} ms", appName, timeoutMillis);
+                return false;
+            }
+        }
+
+        /**
+         * Stops background start, if any, and shuts down the session.
+         */
+        void discard() {
+            if (warming != null) {
+                warming.cancel(true);
+            }
+            instruments.shutdown();
+        }
+    }
+}
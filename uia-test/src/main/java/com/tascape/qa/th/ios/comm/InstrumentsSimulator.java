@@ -0,0 +1,583 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.tascape.qa.th.SystemConfiguration;
+import com.tascape.qa.th.ios.model.CompactElementTree;
+import com.tascape.qa.th.ios.model.UIA;
+import com.tascape.qa.th.ios.model.UIAElement;
+import com.tascape.qa.th.ios.model.UIAException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import net.sf.lipermi.handler.CallHandler;
+import net.sf.lipermi.net.Client;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.libimobiledevice.ios.driver.binding.exceptions.SDKException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stand-in of instruments process and device, for load testing of the bridge on any host. It replays on-device loop
+ * in Java: it calls {@link JavaScriptBridge} over LipeRMI the same way {@link JavaScriptNail} does, posts results of
+ * evaluations back, and writes the markers and log lines of each snippet to the output read by Instruments. The ng
+ * client is a Mac binary, so the nailgun hop is skipped, and its cost is simulated with spawn latency.
+ * <p>
+ * Snippets are not interpreted. Element tree logging replays a recorded tree, such as element-tree.txt, and other
+ * snippets get canned output. Override {@link #runSnippet(String, List)} and {@link #evaluateExpression(String)} for
+ * more realistic responses.
+ *
+ * @author linsong wang
+ */
+public class InstrumentsSimulator extends Instruments {
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentsSimulator.class);
+
+    public static final String SYSPROP_SPAWN_MILLIS = "qa.th.comm.ios.SIM_SPAWN_MILLIS";
+
+    public static final String SYSPROP_SCRIPT_MILLIS = "qa.th.comm.ios.SIM_SCRIPT_MILLIS";
+
+    public static final String SYSPROP_JITTER_MILLIS = "qa.th.comm.ios.SIM_JITTER_MILLIS";
+
+    public static final String SYSPROP_ERROR_RATE = "qa.th.comm.ios.SIM_ERROR_RATE";
+
+    public static final String SYSPROP_DROP_RATE = "qa.th.comm.ios.SIM_DROP_RATE";
+
+    public static final String SYSPROP_APP_DEAD_RATE = "qa.th.comm.ios.SIM_APP_DEAD_RATE";
+
+    public static final String SYSPROP_CRASH_RATE = "qa.th.comm.ios.SIM_CRASH_RATE";
+
+    public static final String SYSPROP_ELEMENT_TREE = "qa.th.comm.ios.SIM_ELEMENT_TREE";
+
+    public static final String DEFAULT_ELEMENT_TREE = "/com/tascape/qa/th/ios/model/element-tree.txt";
+
+    private static final Pattern SNIPPET = Pattern.compile("UIALogger\\.logMessage\\('([^']+)' \\+ ' start'\\);\n"
+        + "try \\{\n  eval\\((\"[^\n]*\")\\);\n"
+        + "\\} catch\\(err\\) \\{\n  UIALogger\\.logError\\(err\\.message\\);\n\\}\n"
+        + "UIALogger\\.logMessage\\('\\1' \\+ ' stop'\\);", Pattern.DOTALL);
+
+    private static final Pattern RUNTIME_ADDRESS = Pattern.compile("\\[\\d+,\\[[\\d,]*\\]\\]");
+
+    private static final Pattern DUMP = Pattern.compile("thx\\.t\\((\\d+),(\\d+)\\)");
+
+    private static final Pattern SUBTREE = Pattern.compile(
+        "thx\\.u\\((window|app\\.windows\\(\\)\\[(\\d+)\\])((?:\\.elements\\(\\)\\[\\d+\\])*),(-?\\d+),(\\d+)\\)");
+
+    private static final Pattern PATH_INDEX = Pattern.compile("\\[(\\d+)\\]");
+
+    private static final Pattern CHUNK = Pattern.compile("thx\\.c\\((\\d+),(\\d+)\\)");
+
+    private static final Pattern TTL = Pattern.compile("^thxCheckTtl\\((\\d+)\\);\n");
+
+    private static final Pattern EVALUATION = Pattern.compile("thxPost\\('([^']+)', eval\\((\".*\")\\)\\);",
+        Pattern.DOTALL);
+
+    private final SystemConfiguration sysConfig = SystemConfiguration.getInstance();
+
+    private long spawnMillis = sysConfig.getLongProperty(SYSPROP_SPAWN_MILLIS, 200);
+
+    private long scriptMillis = sysConfig.getLongProperty(SYSPROP_SCRIPT_MILLIS, 20);
+
+    private long jitterMillis = sysConfig.getLongProperty(SYSPROP_JITTER_MILLIS, 50);
+
+    private double errorRate = Double.parseDouble(sysConfig.getProperty(SYSPROP_ERROR_RATE, "0"));
+
+    private double dropRate = Double.parseDouble(sysConfig.getProperty(SYSPROP_DROP_RATE, "0"));
+
+    private double appDeadRate = Double.parseDouble(sysConfig.getProperty(SYSPROP_APP_DEAD_RATE, "0"));
+
+    private double crashRate = Double.parseDouble(sysConfig.getProperty(SYSPROP_CRASH_RATE, "0"));
+
+    private final List<String> elementTree;
+
+    private final Map<Integer, List<String>> dumpChunks = new ConcurrentHashMap<>();
+
+    private final AtomicInteger dumpId = new AtomicInteger();
+
+    private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss '+0000'");
+
+    public InstrumentsSimulator(String uuid, String appName) throws SDKException, IOException {
+        super(uuid, appName);
+        timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String tree = sysConfig.getProperty(SYSPROP_ELEMENT_TREE);
+        List<String> lines;
+        if (tree == null) {
+            try (InputStream in = InstrumentsSimulator.class.getResourceAsStream(DEFAULT_ELEMENT_TREE)) {
+                lines = IOUtils.readLines(in, Charset.defaultCharset());
+            }
+        } else {
+            lines = FileUtils.readLines(new File(tree), Charset.defaultCharset());
+        }
+        elementTree = lines.stream().filter(l -> !l.contains(" Debug: ")).collect(Collectors.toList());
+    }
+
+    /**
+     * Sets the cost of each ng client call, which is a host task spawn on device.
+     *
+     * @param spawnMillis latency in milliseconds
+     */
+    public void setSpawnMillis(long spawnMillis) {
+        this.spawnMillis = spawnMillis;
+    }
+
+    /**
+     * Sets the time to run each snippet on device.
+     *
+     * @param scriptMillis latency in milliseconds
+     */
+    public void setScriptMillis(long scriptMillis) {
+        this.scriptMillis = scriptMillis;
+    }
+
+    /**
+     * Sets the max random latency added to each spawn and snippet.
+     *
+     * @param jitterMillis latency in milliseconds
+     */
+    public void setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the chance of a snippet failing with a JavaScript error.
+     *
+     * @param errorRate between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the chance of a snippet getting no response at all, which times out its request.
+     *
+     * @param dropRate between 0 and 1
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Sets the chance of the app dying while running a snippet.
+     *
+     * @param appDeadRate between 0 and 1
+     */
+    public void setAppDeadRate(double appDeadRate) {
+        this.appDeadRate = appDeadRate;
+    }
+
+    /**
+     * Sets the chance of instruments process exiting while running a script, without any output.
+     *
+     * @param crashRate between 0 and 1
+     */
+    public void setCrashRate(double crashRate) {
+        this.crashRate = crashRate;
+    }
+
+    @Override
+    protected ExecuteWatchdog startInstrumentsServer(String appName) throws IOException, InterruptedException {
+        PipedInputStream stdout = new PipedInputStream(65536);
+        PrintStream out = new PrintStream(new PipedOutputStream(stdout), true);
+        this.readInstrumentsOutput(stdout);
+        DeviceLoop loop = new DeviceLoop(out);
+        Thread t = new Thread(loop, "instruments-simulator-" + getUuid());
+        t.setDaemon(true);
+        t.start();
+        return new LoopWatchdog(loop);
+    }
+
+    /**
+     * Runs one snippet of a batch, and collects its output. The default is canned output.
+     *
+     * @param javaScript snippet
+     * @param lines      output lines, as printed by instruments, see {@link #stamp(String)}
+     */
+    protected void runSnippet(String javaScript, List<String> lines) {
+        if (javaScript.contains("logElementTree()")) {
+            lines.addAll(elementTree);
+        } else if (javaScript.contains("logElement()") || javaScript.contains("thx.l(")) {
+            lines.add(stamp("logElement:"));
+            lines.add("UIAApplication \"" + getAppName() + "\" {{0, 0}, {320, 568}}");
+        } else if (javaScript.contains("UIALogger.logMessage(")) {
+            lines.add(stamp("Default: simulated"));
+        }
+    }
+
+    /**
+     * Adds timestamp to a log line, such as "2015-11-30 05:23:38 +0000 Default: message".
+     *
+     * @param line log line
+     *
+     * @return line as printed by instruments
+     */
+    protected String stamp(String line) {
+        synchronized (timestamp) {
+            return timestamp.format(new Date()) + " " + line;
+        }
+    }
+
+    /**
+     * Evaluates an expression sent by {@link #evaluate(String)}. The default is true for checks, such as isValid(),
+     * valid states for element snapshots, compact dumps of the recorded element tree and of its subtrees at
+     * elements()[i] paths, the version of helper runtime, and a fixed string for everything else.
+     *
+     * @param javaScript expression
+     *
+     * @return value as a string
+     */
+    protected String evaluateExpression(String javaScript) {
+        String js = javaScript.trim();
+        if (js.equals(JavaScriptRuntime.version())) {
+            return String.valueOf(JavaScriptRuntime.VERSION);
+        }
+        if (js.matches("(?s).*\\.(is|has|checkIs)\\w*\\(\\)$")
+            || js.matches("thx\\.a\\(.*,'(is|has|checkIs)\\w*'\\)")) {
+            return "true";
+        }
+        if (js.startsWith("thx.s(")) {
+            JSONArray states = new JSONArray();
+            Matcher m = RUNTIME_ADDRESS.matcher(js);
+            while (m.find()) {
+                states.put(new JSONObject().put("valid", true).put("label", "simulated").put("value", "simulated")
+                    .put("visible", true).put("enabled", true).put("focus", false));
+            }
+            return states.toString();
+        }
+        Matcher m = DUMP.matcher(js);
+        if (m.matches()) {
+            String dump = CompactElementTree.encode(
+                UIA.newInstance().parseElementTree(Integer.parseInt(m.group(1)), elementTree));
+            return chunk(dump, Integer.parseInt(m.group(2)));
+        }
+        m = SUBTREE.matcher(js);
+        if (m.matches()) {
+            return subtree(m.group(2) == null ? 0 : Integer.parseInt(m.group(2)), m.group(3),
+                Integer.parseInt(m.group(4)), Integer.parseInt(m.group(5)));
+        }
+        m = CHUNK.matcher(js);
+        if (m.matches()) {
+            int id = Integer.parseInt(m.group(1));
+            int i = Integer.parseInt(m.group(2));
+            List<String> chunks = dumpChunks.get(id);
+            if (chunks == null || i < 1 || i >= chunks.size()) {
+                return null;
+            }
+            if (i == chunks.size() - 1) {
+                dumpChunks.remove(id);
+            }
+            return chunks.get(i);
+        }
+        return "simulated";
+    }
+
+    /*
+     * Same as thx.u() of helper runtime, with the recorded tree, for paths of elements()[i] only.
+     */
+    private String subtree(int index, String path, int maxDepth, int chunkSize) {
+        UIAElement element = UIA.newInstance().parseElementTree(index, elementTree);
+        Matcher m = PATH_INDEX.matcher(path);
+        while (m.find()) {
+            int i = Integer.parseInt(m.group(1));
+            if (i >= element.elements().length) {
+                return null;
+            }
+            element = element.elements()[i];
+        }
+        return chunk(CompactElementTree.encodeSubtree(element, maxDepth), chunkSize);
+    }
+
+    /*
+     * Same chunking as thx.t() of helper runtime, keeps the chunks for thx.c() by dump id, and returns the first one.
+     */
+    private String chunk(String dump, int chunkSize) {
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < dump.length() || chunks.isEmpty();) {
+            int j = i;
+            int n = 0;
+            while (j < dump.length()) {
+                char c = dump.charAt(j);
+                boolean pair = j + 1 < dump.length() && Character.isSurrogatePair(c, dump.charAt(j + 1));
+                int b = pair ? 4 : bytes(c);
+                if (n + b > chunkSize && j > i) {
+                    break;
+                }
+                n += b;
+                j += pair ? 2 : 1;
+            }
+            chunks.add(dump.substring(i, j));
+            i = j;
+        }
+        int id = dumpId.incrementAndGet();
+        if (chunks.size() > 1) {
+            dumpChunks.put(id, chunks);
+        }
+        return id + ":" + chunks.size() + ":" + chunks.get(0);
+    }
+
+    /*
+     * Same as bytes() of helper runtime, bytes of a char as posted back, JSON escaped in UTF-8.
+     */
+    private static int bytes(char c) {
+        if (c == '"' || c == '\\' || c == '\b' || c == '\t' || c == '\n' || c == '\f' || c == '\r') {
+            return 2;
+        }
+        if (c < 0x20 || Character.isSurrogate(c)) {
+            return 6;
+        }
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+        Thread.sleep(millis + jitter);
+    }
+
+    private boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    private class DeviceLoop implements Runnable {
+        private final PrintStream out;
+
+        private volatile boolean running = true;
+
+        private volatile boolean stopped;
+
+        private String exitReason = "simulator stopped";
+
+        private JSONArray results = new JSONArray();
+
+        private long received;
+
+        DeviceLoop(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    List<String> scripts = spawn();
+                    for (String js : scripts) {
+                        if (!running) {
+                            break;
+                        }
+                        runScript(js);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                LOG.trace("simulator interrupted");
+            } catch (Exception ex) {
+                LOG.warn("simulator stopped", ex);
+                exitReason = ex.getMessage();
+            } finally {
+                out.close();
+            }
+            if (!stopped) {
+                InstrumentsSimulator.this.instrumentsExited(exitReason);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            running = false;
+        }
+
+        private List<String> spawn() throws Exception {
+            InstrumentsSimulator.this.sleep(spawnMillis);
+            Client client = new Client("localhost", getRmiPort(), new CallHandler());
+            try {
+                JavaScriptBridge bridge = JavaScriptBridge.class.cast(client.getGlobal(JavaScriptBridge.class));
+                for (int i = 0; i < results.length(); i++) {
+                    JSONObject result = results.getJSONObject(i);
+                    bridge.postResult(getUuid(), result.getString("id"), result.toString());
+                }
+                results = new JSONArray();
+                List<String> scripts = bridge.retrieveJavaScripts(getUuid(), JAVASCRIPT_DRAIN_MAX,
+                    JAVASCRIPT_DRAIN_LINGER_MILLIS);
+                received = System.currentTimeMillis();
+                return scripts;
+            } finally {
+                client.close();
+            }
+        }
+
+        private void runScript(String javaScript) throws InterruptedException {
+            log("Debug: " + javaScript);
+            Matcher m = TTL.matcher(javaScript);
+            if (m.find() && System.currentTimeMillis() - received > Long.parseLong(m.group(1))) {
+                log("Error: script expired after " + m.group(1) + " ms");
+                return;
+            }
+            if (chance(crashRate)) {
+                exitReason = "simulated crash";
+                running = false;
+                return;
+            }
+            m = EVALUATION.matcher(javaScript);
+            if (m.find()) {
+                String id = m.group(1);
+                String expression = new JSONArray("[" + m.group(2) + "]").getString(0);
+                InstrumentsSimulator.this.sleep(scriptMillis);
+                if (chance(dropRate)) {
+                    return;
+                }
+                JSONObject result = new JSONObject().put("id", id);
+                if (chance(errorRate)) {
+                    result.put("type", JavaScriptResult.TYPE_ERROR).put("value", "simulated error");
+                } else {
+                    String value = evaluateExpression(expression);
+                    result.put("type", "true".equals(value) ? "boolean" : "string").put("value", value);
+                }
+                results.put(result);
+                return;
+            }
+            m = SNIPPET.matcher(javaScript);
+            while (m.find()) {
+                InstrumentsSimulator.this.sleep(scriptMillis);
+                if (chance(dropRate)) {
+                    continue;
+                }
+                String id = m.group(1);
+                log("Default: " + id + " start");
+                if (chance(appDeadRate)) {
+                    log(APP_DEAD);
+                    exitReason = "app dead";
+                    running = false;
+                    return;
+                }
+                if (chance(errorRate)) {
+                    log("Error: simulated error");
+                } else {
+                    List<String> lines = new ArrayList<>();
+                    runSnippet(new JSONArray("[" + m.group(2) + "]").getString(0), lines);
+                    lines.forEach(out::println);
+                }
+                log("Default: " + id + " stop");
+            }
+        }
+
+        private void log(String line) {
+            out.println(stamp(line));
+        }
+    }
+
+    /**
+     * Watchdog of the simulated process, which stops device loop on disconnect.
+     */
+    private static class LoopWatchdog extends ExecuteWatchdog {
+        private final DeviceLoop loop;
+
+        LoopWatchdog(DeviceLoop loop) {
+            super(Long.MAX_VALUE);
+            this.loop = loop;
+        }
+
+        @Override
+        public synchronized void stop() {
+            loop.stop();
+            super.stop();
+        }
+    }
+
+    /**
+     * Runs a load test of the bridge, and prints bridge metrics of each simulated device.
+     *
+     * @param sessions number of simulated devices
+     * @param requests number of requests per device
+     * @param threads  number of threads sending requests to each device
+     *
+     * @throws Exception in case of any error
+     */
+    public static void loadTest(int sessions, int requests, int threads) throws Exception {
+        List<InstrumentsSimulator> simulators = new ArrayList<>();
+        ExecutorService es = Executors.newFixedThreadPool(sessions * threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < sessions; i++) {
+                InstrumentsSimulator simulator = new InstrumentsSimulator("simulator-" + i, "Simulated");
+                simulators.add(simulator);
+                simulator.connect();
+                for (int j = 0; j < threads; j++) {
+                    futures.add(es.submit(() -> {
+                        for (int k = 0; k < requests / threads; k++) {
+                            try {
+                                if (k % 3 == 0) {
+                                    simulator.runJavaScript("window.logElementTree();");
+                                } else {
+                                    simulator.evaluate("window.buttons()[0].isValid()");
+                                }
+                            } catch (UIAException ex) {
+                                LOG.debug("{}", ex.getMessage());
+                            }
+                        }
+                    }));
+                }
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            es.shutdownNow();
+            simulators.forEach(Instruments::shutdown);
+        }
+        long time = Math.max(1, System.currentTimeMillis() - start);
+        simulators.forEach(s -> LOG.info("{}", s.getMetrics()));
+        long total = simulators.stream().mapToLong(s -> s.getMetrics().getRequestCount()).sum();
+        LOG.info("{} sessions, {} requests in {} ms, {} requests/s", sessions, total, time, total * 1000 / time);
+    }
+
+    /**
+     * Runs a load test, with arguments number of sessions, number of requests per session, and number of threads
+     * per session.
+     *
+     * @param args arguments
+     */
+    public static void main(String[] args) {
+        try {
+            loadTest(args.length > 0 ? Integer.parseInt(args[0]) : 16,
+                args.length > 1 ? Integer.parseInt(args[1]) : 200,
+                args.length > 2 ? Integer.parseInt(args[2]) : 1);
+        } catch (Throwable t) {
+            LOG.error("", t);
+        } finally {
+            System.exit(0);
+        }
+    }
+}
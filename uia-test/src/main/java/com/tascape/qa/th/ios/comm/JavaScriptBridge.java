@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import java.util.List;
+
+/**
+ * Remote interface of the host-wide {@link InstrumentsBridge}, which routes calls of on-device loops to the session
+ * of each device by its uuid.
+ *
+ * @author linsong wang
+ */
+public interface JavaScriptBridge {
+
+    /**
+     * Retrieves queued JavaScript snippets of a device, see {@link JavaScriptServer#retrieveJavaScripts(int, long)}.
+     *
+     * @param uuid         device uuid
+     * @param max          max number of snippets to retrieve
+     * @param lingerMillis time to wait for more snippets after the first one, 0 to take only what is already queued
+     *
+     * @return snippets in the order of queueing, or an empty list if there is nothing to run, or no session of the
+     *         device
+     *
+     * @throws InterruptedException in case of interruption
+     */
+    List<String> retrieveJavaScripts(String uuid, int max, long lingerMillis) throws InterruptedException;
+
+    /**
+     * Posts the value of a JavaScript evaluation back from on-device loop of a device.
+     *
+     * @param uuid    device uuid
+     * @param id      request id
+     * @param payload JSON, such as {"id":"...","type":"boolean","value":"true"}
+     */
+    void postResult(String uuid, String id, String payload);
+}
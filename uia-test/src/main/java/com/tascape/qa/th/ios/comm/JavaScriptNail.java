@@ -21,9 +21,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Paths;
+import java.util.List;
 import net.sf.lipermi.handler.CallHandler;
 import net.sf.lipermi.net.Client;
 import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -59,13 +62,34 @@ public class JavaScriptNail {
         NG_CLIENT = ng.getAbsolutePath();
     }
 
+    /**
+     * Prints a JSON array of snippets drained for a device. Results of the previous snippets, if any, are posted back
+     * first. On-device loop keeps the results argument within {@link Instruments#JAVASCRIPT_POST_MAX_BYTES}.
+     *
+     * @param context ng context, arguments are rmi port, device uuid, max, linger millis, [JSON array of results]
+     *
+     * @throws Exception in case of any error
+     */
     public static void nailMain(NGContext context) throws Exception {
-        int port = Integer.parseInt(context.getArgs()[0]);
+        String[] args = context.getArgs();
+        int port = Integer.parseInt(args[0]);
+        String uuid = args[1];
         CallHandler callHandler = new CallHandler();
         Client client = new Client("localhost", port, callHandler);
-        JavaScriptServer jss = JavaScriptServer.class.cast(client.getGlobal(JavaScriptServer.class));
-        String js = jss.retrieveJavaScript();
-        System.out.println(js);
-        client.close();
+        try {
+            JavaScriptBridge bridge = JavaScriptBridge.class.cast(client.getGlobal(JavaScriptBridge.class));
+            if (args.length > 4) {
+                JSONArray results = new JSONArray(args[4]);
+                for (int i = 0; i < results.length(); i++) {
+                    JSONObject result = results.getJSONObject(i);
+                    bridge.postResult(uuid, result.getString("id"), result.toString());
+                }
+            }
+            List<String> scripts = bridge.retrieveJavaScripts(uuid, Integer.parseInt(args[2]),
+                Long.parseLong(args[3]));
+            System.out.println(new JSONArray(scripts).toString());
+        } finally {
+            client.close();
+        }
     }
 }
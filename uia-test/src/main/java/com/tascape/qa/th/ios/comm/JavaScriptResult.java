@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import org.json.JSONObject;
+
+/**
+ * Value of a JavaScript evaluation on device, posted back by on-device loop, instead of being logged and scraped
+ * from Instruments output.
+ *
+ * @author linsong wang
+ */
+public class JavaScriptResult {
+
+    public static final String TYPE_ERROR = "error";
+
+    public static final String TYPE_NULL = "null";
+
+    private final String id;
+
+    private final String type;
+
+    private final String value;
+
+    /**
+     * Parses a result posted by on-device loop, such as {"id":"...","type":"boolean","value":"true"}.
+     *
+     * @param id      request id
+     * @param payload JSON payload
+     *
+     * @return result object
+     */
+    public static JavaScriptResult parse(String id, String payload) {
+        JSONObject json = new JSONObject(payload);
+        return new JavaScriptResult(id, json.optString("type", TYPE_NULL), json.has("value")
+            ? json.optString("value") : null);
+    }
+
+    public JavaScriptResult(String id, String type, String value) {
+        this.id = id;
+        this.type = type;
+        this.value = value;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets JavaScript type of the value, such as "string", "number", "boolean", "object", "null" or "error".
+     *
+     * @return type of value
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the value as a string. Objects are in JSON, if they can be stringified on device.
+     *
+     * @return value, error message, or null
+     */
+    public String getValue() {
+        return value;
+    }
+
+    public boolean isError() {
+        return TYPE_ERROR.equals(type);
+    }
+
+    public boolean isNull() {
+        return TYPE_NULL.equals(type);
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + type + " " + value;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.tascape.qa.th.ios.model.UIAException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+
+/**
+ * Java half of the helper runtime installed into on-device loop by {@link Instruments}, see thx-runtime.js. Commands
+ * address an element by its window index and path of element indexes, and call short runtime functions, such as
+ * "thx.a(0,[3,0],'tap')", instead of sending full element paths. The version of both halves is checked on launch.
+ *
+ * @author linsong wang
+ */
+public final class JavaScriptRuntime {
+
+    /**
+     * Version of the runtime, which must match VERSION in thx-runtime.js.
+     */
+    public static final int VERSION = 4;
+
+    public static final String RESOURCE = "thx-runtime.js";
+
+    private static final String SCRIPT;
+
+    static {
+        try (InputStream in = JavaScriptRuntime.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                throw new UIAException("Cannot find helper runtime " + RESOURCE);
+            }
+            SCRIPT = IOUtils.toString(in, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new UIAException("Cannot load helper runtime " + RESOURCE, ex);
+        }
+    }
+
+    private JavaScriptRuntime() {
+    }
+
+    /**
+     * Gets the runtime script, which defines the global "thx" on device.
+     *
+     * @return JavaScript
+     */
+    public static String getScript() {
+        return SCRIPT;
+    }
+
+    /**
+     * Gets the JavaScript expression that checks runtime version on device.
+     *
+     * @return JavaScript expression
+     */
+    public static String version() {
+        return "thx.version";
+    }
+
+    /**
+     * Gets the runtime address of an element, such as "0,[3,0]".
+     *
+     * @param window window index
+     * @param path   element index at each level under window
+     *
+     * @return address
+     */
+    public static String address(int window, int[] path) {
+        StringBuilder sb = new StringBuilder().append(window).append(",[");
+        for (int i = 0; i < path.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(path[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Gets the JavaScript expression that resolves an element.
+     *
+     * @param address element address, see {@link #address(int, int[])}
+     *
+     * @return JavaScript expression, such as "thx.e(0,[3,0])"
+     */
+    public static String element(String address) {
+        return "thx.e(" + address + ")";
+    }
+
+    /**
+     * Gets the JavaScript expression that calls a method of an element.
+     *
+     * @param address element address, see {@link #address(int, int[])}
+     * @param method  method name, such as "tap"
+     * @param args    arguments, strings are quoted, others are used as is
+     *
+     * @return JavaScript expression, such as "thx.a(0,[3,0],'setValue','abc')"
+     */
+    public static String invoke(String address, String method, Object... args) {
+        StringBuilder sb = new StringBuilder("thx.a(").append(address).append(",'").append(method).append('\'');
+        for (Object arg : args) {
+            sb.append(',').append(arg instanceof String ? JSONObject.quote((String) arg) : String.valueOf(arg));
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Gets the JavaScript statement that logs an element.
+     *
+     * @param address element address, see {@link #address(int, int[])}
+     *
+     * @return JavaScript statement
+     */
+    public static String logElement(String address) {
+        return "thx.l(" + address + ");";
+    }
+
+    /**
+     * Gets the JavaScript expression of state of elements, as a JSON array of {valid, label, value, visible, enabled,
+     * focus}.
+     *
+     * @param addresses element addresses, see {@link #address(int, int[])}
+     *
+     * @return JavaScript expression
+     */
+    public static String states(List<String> addresses) {
+        StringBuilder sb = new StringBuilder("thx.s([");
+        for (int i = 0; i < addresses.size(); i++) {
+            sb.append(i == 0 ? "[" : ",[").append(addresses.get(i)).append(']');
+        }
+        return sb.append("])").toString();
+    }
+
+    /**
+     * Gets the JavaScript expression that dumps the element tree of a window in compact form, see
+     * {@link com.tascape.qa.th.ios.model.CompactElementTree}. Its value is "id:count:chunk0", where id identifies
+     * the dump on device, count is the number of chunks of the dump, and other chunks are read with
+     * {@link #chunk(int, int)}.
+     *
+     * @param window    window index
+     * @param chunkSize maximum number of bytes of each chunk as posted back, JSON escaped in UTF-8
+     *
+     * @return JavaScript expression
+     */
+    public static String dump(int window, int chunkSize) {
+        return "thx.t(" + window + "," + chunkSize + ")";
+    }
+
+    /**
+     * Gets the JavaScript expression that dumps the subtree of an element in compact form, see
+     * {@link com.tascape.qa.th.ios.model.CompactElementTree#decodeSubtree(String)}. Its value is the same as of
+     * {@link #dump(int, int)}.
+     *
+     * @param javaScript JavaScript that resolves the element, such as "window.tableViews()[0]"
+     * @param maxDepth   number of levels of descendants to dump, or -1 for all
+     * @param chunkSize  maximum number of bytes of each chunk as posted back, JSON escaped in UTF-8
+     *
+     * @return JavaScript expression
+     */
+    public static String subtree(String javaScript, int maxDepth, int chunkSize) {
+        return "thx.u(" + javaScript + "," + maxDepth + "," + chunkSize + ")";
+    }
+
+    /**
+     * Gets the JavaScript expression of a chunk of a dump, see {@link #dump(int, int)}. Its value is null if the dump
+     * is gone, such as after Instruments restarts. The dump is freed on device after its last chunk is read.
+     *
+     * @param dumpId id of the dump
+     * @param index  chunk index, from 1
+     *
+     * @return JavaScript expression
+     */
+    public static String chunk(int dumpId, int index) {
+        return "thx.c(" + dumpId + "," + index + ")";
+    }
+}
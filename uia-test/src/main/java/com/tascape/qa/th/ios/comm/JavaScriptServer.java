@@ -15,6 +15,8 @@
  */
 package com.tascape.qa.th.ios.comm;
 
+import java.util.List;
+
 /**
  *
  * @author linsong wang
@@ -22,4 +24,26 @@ package com.tascape.qa.th.ios.comm;
 public interface JavaScriptServer {
 
     String retrieveJavaScript() throws InterruptedException;
+
+    /**
+     * Retrieves queued JavaScript snippets, so that one ng client call on device feeds many evaluations. It waits for
+     * the first snippet for a limited time, then keeps collecting until max snippets, or linger time is up.
+     *
+     * @param max          max number of snippets to retrieve, 0 to retrieve none, such as while on-device loop still
+     *                     has results to post back
+     * @param lingerMillis time to wait for more snippets after the first one, 0 to take only what is already queued
+     *
+     * @return snippets in the order of queueing, or an empty list if there is nothing to run
+     *
+     * @throws InterruptedException in case of interruption
+     */
+    List<String> retrieveJavaScripts(int max, long lingerMillis) throws InterruptedException;
+
+    /**
+     * Posts the value of a JavaScript evaluation back from on-device loop.
+     *
+     * @param id      request id
+     * @param payload JSON, such as {"id":"...","type":"boolean","value":"true"}
+     */
+    void postResult(String id, String payload);
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in microseconds. Each power of two is split into 8 buckets, so
+ * a percentile is accurate to within 12.5%, which is good enough to tell a slow device from a fast one.
+ *
+ * @author linsong wang
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 16;
+
+    private static final int SUB_BITS = 3;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int SIZE = LINEAR + (MAX_EXPONENT - 4 + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds, negative values are ignored
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets a percentile, the upper bound of the bucket where the percentile falls in.
+     *
+     * @param percentile such as 50, 95, 99
+     *
+     * @return latency in milliseconds, or 0 if nothing is recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < SIZE; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), max.get()) / 1000.0;
+            }
+        }
+        return max.get() / 1000.0;
+    }
+
+    public double getMeanMillis() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / 1000.0 / total;
+    }
+
+    public double getMaxMillis() {
+        return max.get() / 1000.0;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public void reset() {
+        for (int i = 0; i < SIZE; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int index(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return Math.min(LINEAR + (exponent - 4) * SUB_COUNT + sub, SIZE - 1);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_COUNT + 4;
+        int sub = (index - LINEAR) % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_COUNT + sub) * width + width - 1;
+    }
+
+    /**
+     * Point-in-time copy of the main statistics of a histogram.
+     */
+    public static class Snapshot {
+        private final long count;
+
+        private final double p50Millis;
+
+        private final double p95Millis;
+
+        private final double p99Millis;
+
+        private final double meanMillis;
+
+        private final double maxMillis;
+
+        private Snapshot(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.p50Millis = histogram.getPercentileMillis(50);
+            this.p95Millis = histogram.getPercentileMillis(95);
+            this.p99Millis = histogram.getPercentileMillis(99);
+            this.meanMillis = histogram.getMeanMillis();
+            this.maxMillis = histogram.getMaxMillis();
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP95Millis() {
+            return p95Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, mean %.1f ms, max %.1f ms",
+                count, p50Millis, p95Millis, p99Millis, meanMillis, maxMillis);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.tascape.qa.th.SystemConfiguration;
+import java.io.Closeable;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands Instruments output lines to subscribers without ever blocking the process readers. Lines are published into
+ * a fixed-size ring buffer, and each subscriber reads the ring on its own thread at its own pace. A subscriber that
+ * falls more than the ring size behind skips the oldest lines, which are counted as dropped, so a slow subscriber
+ * cannot back-pressure instruments during a log storm.
+ * <p>
+ * The ring has two producers, the stdout and stderr readers, which claim slots with an atomic counter.
+ *
+ * @author linsong wang
+ */
+public class OutputDispatcher implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(OutputDispatcher.class);
+
+    public static final String SYSPROP_BUFFER_SIZE = "qa.th.comm.ios.OUTPUT_BUFFER_SIZE";
+
+    public static final int BUFFER_SIZE = SystemConfiguration.getInstance().getIntProperty(SYSPROP_BUFFER_SIZE, 8192);
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    public enum LineType {
+        /**
+         * Line of stdout.
+         */
+        OUTPUT,
+        /**
+         * Line of stderr, which is a known warning.
+         */
+        WARNING,
+        /**
+         * Line of stderr, which is an error.
+         */
+        ERROR
+    }
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<Entry> slots;
+
+    private final AtomicLong claimed = new AtomicLong(-1);
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private volatile boolean closed;
+
+    public OutputDispatcher() {
+        this(BUFFER_SIZE);
+    }
+
+    /**
+     * @param size ring size, rounded up to a power of two
+     */
+    public OutputDispatcher(int size) {
+        this.capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.mask = capacity - 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Publishes a line to all subscribers. It never blocks.
+     *
+     * @param type line type
+     * @param line line text
+     */
+    public void publish(LineType type, String line) {
+        if (closed) {
+            return;
+        }
+        long seq = claimed.incrementAndGet();
+        slots.set((int) (seq & mask), new Entry(seq, type, line));
+        for (Subscription s : subscriptions) {
+            s.signal();
+        }
+    }
+
+    /**
+     * Subscribes to lines of given types, starting from the next published line.
+     *
+     * @param listener called on the subscription thread, one line at a time, in published order
+     * @param types    line types, or all types if none is given
+     *
+     * @return subscription, to be closed when no longer needed
+     */
+    public Subscription subscribe(Consumer<String> listener, LineType... types) {
+        return subscribe((type, line) -> listener.accept(line), types);
+    }
+
+    /**
+     * Subscribes to lines of given types, with their line type, starting from the next published line. Lines of all
+     * given types come from one thread, so their order is kept.
+     *
+     * @param listener called on the subscription thread, one line at a time, in published order
+     * @param types    line types, or all types if none is given
+     *
+     * @return subscription, to be closed when no longer needed
+     */
+    public Subscription subscribe(BiConsumer<LineType, String> listener, LineType... types) {
+        Set<LineType> set = types.length == 0 ? EnumSet.allOf(LineType.class) : EnumSet.noneOf(LineType.class);
+        for (LineType type : types) {
+            set.add(type);
+        }
+        Subscription s = new Subscription(listener, set, claimed.get() + 1);
+        subscriptions.add(s);
+        s.thread.start();
+        return s;
+    }
+
+    /**
+     * Gets the number of lines published so far.
+     *
+     * @return number of lines
+     */
+    public long getPublishedCount() {
+        return claimed.get() + 1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stops all subscriptions, after they deliver the lines already published.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        subscriptions.forEach(Subscription::close);
+    }
+
+    private static class Entry {
+        private final long seq;
+
+        private final LineType type;
+
+        private final String line;
+
+        Entry(long seq, LineType type, String line) {
+            this.seq = seq;
+            this.type = type;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Reader of the ring, with its own thread and position.
+     */
+    public class Subscription implements Closeable {
+        private final BiConsumer<LineType, String> listener;
+
+        private final Set<LineType> types;
+
+        private final Thread thread;
+
+        private final AtomicLong delivered = new AtomicLong();
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private volatile boolean parked;
+
+        private volatile boolean stopped;
+
+        private long next;
+
+        Subscription(BiConsumer<LineType, String> listener, Set<LineType> types, long next) {
+            this.listener = listener;
+            this.types = types;
+            this.next = next;
+            this.thread = new Thread(this::run, "instruments-output-" + THREAD_COUNT.incrementAndGet());
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Gets the number of lines delivered to listener.
+         *
+         * @return number of lines
+         */
+        public long getDeliveredCount() {
+            return delivered.get();
+        }
+
+        /**
+         * Gets the number of lines skipped, because the listener fell behind by more than the ring size.
+         *
+         * @return number of lines
+         */
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        @Override
+        public void close() {
+            stopped = true;
+            subscriptions.remove(this);
+            LockSupport.unpark(thread);
+        }
+
+        private void signal() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void run() {
+            while (true) {
+                Entry e = slots.get((int) (next & mask));
+                if (e != null && e.seq == next) {
+                    next++;
+                    if (types.contains(e.type)) {
+                        deliver(e.type, e.line);
+                    }
+                    continue;
+                }
+                if (e != null && e.seq > next) {
+                    long oldest = Math.max(next + 1, claimed.get() - capacity + 1);
+                    dropped.addAndGet(oldest - next);
+                    next = oldest;
+                    continue;
+                }
+                if (stopped) {
+                    break;
+                }
+                parked = true;
+                if (slots.get((int) (next & mask)) == e) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+            }
+            LOG.trace("subscription stopped, delivered {}, dropped {}", delivered.get(), dropped.get());
+        }
+
+        private void deliver(LineType type, String line) {
+            try {
+                listener.accept(type, line);
+                delivered.incrementAndGet();
+            } catch (RuntimeException ex) {
+                LOG.warn("Cannot handle line {}", line, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+/**
+ * Timestamps, in System.nanoTime(), of one request on its way through the bridge. A timestamp is 0 until the request
+ * gets there.
+ *
+ * @author linsong wang
+ */
+class RequestTiming {
+
+    volatile long enqueued;
+
+    /**
+     * Handed to ng client.
+     */
+    volatile long retrieved;
+
+    /**
+     * First start marker shows up in Instruments output, not set for evaluation requests.
+     */
+    volatile long started;
+
+    /**
+     * Last stop marker shows up, or result is posted back.
+     */
+    volatile long stopped;
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.comm;
+
+import com.tascape.qa.th.ios.model.UIAException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes Instruments output lines to the request that owns them. Device runs snippets one after another, and each
+ * snippet is wrapped with "requestId-index start" and "requestId-index stop" markers, so every line between a pair of
+ * markers belongs to that snippet. Lines outside of any known snippet are dropped. Results posted back by on-device
+ * loop are routed by request id as well. Arrival of markers and results is stamped on the timing of each request.
+ *
+ * @author linsong wang
+ */
+class ResponseDemultiplexer {
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseDemultiplexer.class);
+
+    private static final String START = " start";
+
+    private static final String STOP = " stop";
+
+    private final Map<String, Request> requests = new ConcurrentHashMap<>();
+
+    private final Map<String, PendingResult> results = new ConcurrentHashMap<>();
+
+    private Request current;
+
+    /**
+     * Registers a request before its JavaScript is sent to device.
+     *
+     * @param requestId id used in markers
+     * @param size      number of snippets
+     * @param timing    timing of request
+     *
+     * @return future of response lines of each snippet
+     */
+    CompletableFuture<List<List<String>>> register(String requestId, int size, RequestTiming timing) {
+        Request request = new Request(requestId, size, timing);
+        requests.put(requestId, request);
+        return request.future;
+    }
+
+    /**
+     * Forgets a request, such as after timeout. Its lines, if any arrive later, are dropped.
+     *
+     * @param requestId id used in markers
+     */
+    synchronized void unregister(String requestId) {
+        Request request = requests.remove(requestId);
+        if (request != null && request == current) {
+            current = null;
+        }
+    }
+
+    /**
+     * Registers a request whose value is posted back by on-device loop.
+     *
+     * @param requestId request id
+     * @param timing    timing of request
+     *
+     * @return future of result
+     */
+    CompletableFuture<JavaScriptResult> registerResult(String requestId, RequestTiming timing) {
+        PendingResult pending = new PendingResult(timing);
+        results.put(requestId, pending);
+        return pending.future;
+    }
+
+    void unregisterResult(String requestId) {
+        results.remove(requestId);
+    }
+
+    void acceptResult(JavaScriptResult result) {
+        PendingResult pending = results.remove(result.getId());
+        if (pending == null) {
+            LOG.trace("drop {}", result);
+            return;
+        }
+        pending.timing.stopped = System.nanoTime();
+        pending.future.complete(result);
+    }
+
+    synchronized void accept(String line) {
+        String id = markerId(line, START);
+        if (id != null && startSnippet(id)) {
+            return;
+        }
+        id = markerId(line, STOP);
+        if (id != null && stopSnippet(id)) {
+            return;
+        }
+        if (current == null) {
+            LOG.trace("drop {}", line);
+            return;
+        }
+        current.lines.add(line);
+        if (line.contains(Instruments.APP_DEAD)) {
+            LOG.error(line);
+            failAll(new UIAException("instruments error " + line));
+        }
+    }
+
+    /**
+     * Cancels all pending requests. Their lines and results, if any arrive later, are dropped.
+     */
+    synchronized void cancelAll() {
+        current = null;
+        removeRequests().forEach(r -> r.future.cancel(true));
+        removeResults().forEach(r -> r.future.cancel(true));
+    }
+
+    /**
+     * Fails all pending requests, such as when Instruments cannot start, or the app dies.
+     *
+     * @param ex the cause
+     */
+    synchronized void failAll(UIAException ex) {
+        current = null;
+        removeRequests().forEach(r -> r.future.completeExceptionally(ex));
+        removeResults().forEach(r -> r.future.completeExceptionally(ex));
+    }
+
+    /**
+     * Fails one pending request, such as when its script is lost with the exited instruments process.
+     *
+     * @param requestId request id
+     * @param ex        the cause
+     */
+    synchronized void fail(String requestId, UIAException ex) {
+        Request request = requests.remove(requestId);
+        if (request != null) {
+            if (request == current) {
+                current = null;
+            }
+            request.future.completeExceptionally(ex);
+        }
+        PendingResult pending = results.remove(requestId);
+        if (pending != null) {
+            pending.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Drops lines collected so far of a pending request, before its script is run again.
+     *
+     * @param requestId request id
+     */
+    synchronized void reset(String requestId) {
+        Request request = requests.get(requestId);
+        if (request == null) {
+            return;
+        }
+        if (request == current) {
+            current = null;
+        }
+        request.results.clear();
+        request.lines = null;
+    }
+
+    int size() {
+        return requests.size() + results.size();
+    }
+
+    /**
+     * Removes pending requests before completing them, so that a request registered by a woken caller in the
+     * meantime is kept.
+     */
+    private List<Request> removeRequests() {
+        List<Request> removed = new ArrayList<>();
+        requests.forEach((id, r) -> {
+            if (requests.remove(id, r)) {
+                removed.add(r);
+            }
+        });
+        return removed;
+    }
+
+    private List<PendingResult> removeResults() {
+        List<PendingResult> removed = new ArrayList<>();
+        results.forEach((id, r) -> {
+            if (results.remove(id, r)) {
+                removed.add(r);
+            }
+        });
+        return removed;
+    }
+
+    private boolean startSnippet(String id) {
+        Request request = findRequest(id);
+        if (request == null) {
+            return false;
+        }
+        current = request;
+        current.lines = new ArrayList<>();
+        if (request.timing.started == 0) {
+            request.timing.started = System.nanoTime();
+        }
+        return true;
+    }
+
+    private boolean stopSnippet(String id) {
+        Request request = findRequest(id);
+        if (request == null || request != current) {
+            return false;
+        }
+        request.results.add(request.lines);
+        current = null;
+        if (request.results.size() == request.size) {
+            requests.remove(request.id);
+            request.timing.stopped = System.nanoTime();
+            request.future.complete(request.results);
+        }
+        return true;
+    }
+
+    private Request findRequest(String id) {
+        int i = id.lastIndexOf('-');
+        if (i < 0) {
+            return null;
+        }
+        return requests.get(id.substring(0, i));
+    }
+
+    /**
+     * Gets the marker id, the last token of a line that ends with marker suffix.
+     */
+    private static String markerId(String line, String suffix) {
+        int end = line.length();
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        int stop = end - suffix.length();
+        if (stop <= 0 || !line.startsWith(suffix, stop)) {
+            return null;
+        }
+        int start = line.lastIndexOf(' ', stop - 1) + 1;
+        return line.substring(start, stop);
+    }
+
+    private static class Request {
+        private final String id;
+
+        private final int size;
+
+        private final RequestTiming timing;
+
+        private final CompletableFuture<List<List<String>>> future = new CompletableFuture<>();
+
+        private final List<List<String>> results = new ArrayList<>();
+
+        private List<String> lines;
+
+        Request(String id, int size, RequestTiming timing) {
+            this.id = id;
+            this.size = size;
+            this.timing = timing;
+        }
+    }
+
+    private static class PendingResult {
+        private final RequestTiming timing;
+
+        private final CompletableFuture<JavaScriptResult> future = new CompletableFuture<>();
+
+        PendingResult(RequestTiming timing) {
+            this.timing = timing;
+        }
+    }
+}
@@ -55,9 +55,10 @@ public abstract class App extends EntityDriver {
     }
 
     public void launch() throws Exception {
-        device.getDebugService().killApp(this.getBundleId());
-
         device.setAlertAutoDismiss();
+        if (!device.hasWarmSession(this.getName())) {
+            device.getDebugService().killApp(this.getBundleId());
+        }
         device.start(this.getName(), getLaunchTries(), getLaunchDelayMillis());
     }
 
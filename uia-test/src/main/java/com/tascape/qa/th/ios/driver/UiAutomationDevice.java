@@ -22,23 +22,34 @@ import org.slf4j.LoggerFactory;
 import com.tascape.qa.th.SystemConfiguration;
 import com.tascape.qa.th.Utils;
 import com.tascape.qa.th.ios.comm.Instruments;
+import com.tascape.qa.th.ios.comm.InstrumentsSessionManager;
+import com.tascape.qa.th.ios.comm.JavaScriptRuntime;
+import com.tascape.qa.th.ios.model.CompactElementTree;
 import com.tascape.qa.th.ios.model.DeviceOrientation;
 import com.tascape.qa.th.ios.model.UIAAlert;
 import com.tascape.qa.th.ios.model.UIAApplication;
 import com.tascape.qa.th.ios.model.UIAElement;
+import com.tascape.qa.th.ios.model.UIAElementType;
 import com.tascape.qa.th.ios.model.UIAException;
 import com.tascape.qa.th.ios.model.UIAKeyboard;
 import com.tascape.qa.th.ios.model.UIATarget;
 import com.tascape.qa.th.ios.model.UIAWindow;
+import com.tascape.qa.th.ios.model.UIAWindowDiff;
 import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
@@ -53,20 +64,57 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     public static final String SYSPROP_TIMEOUT_SECOND = "qa.th.driver.ios.TIMEOUT_SECOND";
 
+    /**
+     * Loads element trees as compact dumps of the helper runtime, instead of logElementTree(), see
+     * {@link CompactElementTree}. Default is false.
+     */
+    public static final String SYSPROP_COMPACT_ELEMENT_TREE = "qa.th.driver.ios.COMPACT_ELEMENT_TREE";
+
+    public static final String SYSPROP_ELEMENT_TREE_CHUNK_SIZE = "qa.th.driver.ios.ELEMENT_TREE_CHUNK_SIZE";
+
+    /**
+     * Maximum age of cached main window, see {@link #mainWindow()}. Default is 1000 ms, and 0 disables the cache.
+     */
+    public static final String SYSPROP_ELEMENT_TREE_MAX_AGE_MILLIS = "qa.th.driver.ios.ELEMENT_TREE_MAX_AGE_MILLIS";
+
     public static final String TRACE_TEMPLATE = "/Applications/Xcode.app/Contents/Applications/Instruments.app/Contents"
         + "/PlugIns/AutomationInstrument.xrplugin/Contents/Resources/Automation.tracetemplate";
 
     public static final int TIMEOUT_SECOND
         = SystemConfiguration.getInstance().getIntProperty(SYSPROP_TIMEOUT_SECOND, 120);
 
+    public static final boolean COMPACT_ELEMENT_TREE
+        = SystemConfiguration.getInstance().getBooleanProperty(SYSPROP_COMPACT_ELEMENT_TREE, false);
+
+    /**
+     * Maximum size of each chunk of compact element tree, in bytes of host task argument, not in characters: the chunk
+     * is posted back JSON escaped in UTF-8, together with other results, within
+     * {@link Instruments#JAVASCRIPT_POST_MAX_BYTES}. The default is 16K less room for the result envelope.
+     */
+    public static final int ELEMENT_TREE_CHUNK_SIZE
+        = SystemConfiguration.getInstance().getIntProperty(SYSPROP_ELEMENT_TREE_CHUNK_SIZE, 16000);
+
+    public static final long ELEMENT_TREE_MAX_AGE_MILLIS
+        = SystemConfiguration.getInstance().getLongProperty(SYSPROP_ELEMENT_TREE_MAX_AGE_MILLIS, 1000);
+
     private Instruments instruments;
 
     private Dimension screenDimension;
 
     private UIAWindow currentWindow;
 
+    private long currentGeneration = -1;
+
+    private long currentLoaded;
+
+    private long elementTreeMaxAgeMillis = ELEMENT_TREE_MAX_AGE_MILLIS;
+
     private String alertHandler = "";
 
+    private Integer timeout;
+
+    private final Deque<Integer> timeouts = new ArrayDeque<>();
+
     public static synchronized List<UiAutomationDevice> getAllDevices() {
         if (DEVICES.isEmpty()) {
             List<String> UUIDS = LibIMobileDevice.getAllUuids();
@@ -115,36 +163,39 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
      */
     public void start(String appName, int tries, int delayMillis) throws Exception {
         if (instruments != null) {
-            instruments.disconnect();
-        } else {
-            instruments = new Instruments(getUuid(), appName);
-        }
-        if (StringUtils.isNotEmpty(alertHandler)) {
-            instruments.setPreTargetJavaScript(alertHandler);
-        }
-        for (int i = 0; i < tries; i++) {
-            instruments.connect();
-            Utils.sleep(delayMillis, "Wait for app to start");
-            long end = System.currentTimeMillis() + TIMEOUT_SECOND * 500;
-            while (end > System.currentTimeMillis()) {
-                try {
-                    if (this.instruments.runJavaScript("app.logElement();").stream()
-                        .filter(l -> l.contains(UIAApplication.class.getSimpleName())).findAny().isPresent()) {
-                        return;
-                    }
-                } catch (Exception ex) {
-                    LOG.warn("cannot start app", ex);
-                    Thread.sleep(5000);
-                }
-            }
+            InstrumentsSessionManager.getInstance().release(instruments);
+            instruments = null;
         }
-        throw new UIAException("Cannot start app ");
+        instruments = InstrumentsSessionManager.getInstance()
+            .acquire(getUuid(), appName, alertHandler, tries, delayMillis, TIMEOUT_SECOND * 500L);
+        timeout = null;
+        timeouts.clear();
+        invalidateElementTree();
+    }
+
+    /**
+     * Checks if the app is kept running in a warm Instruments session, so that next start does not need to restart
+     * it. See {@link InstrumentsSessionManager#SYSPROP_WARM_STANDBY}.
+     *
+     * @param appName app name
+     *
+     * @return true if there is a warm session
+     */
+    public boolean hasWarmSession(String appName) {
+        return InstrumentsSessionManager.getInstance().hasWarmSession(getUuid(), appName, alertHandler);
     }
 
     public void stop() {
-        if (instruments != null) {
+        if (instruments == null) {
+            return;
+        }
+        if (InstrumentsSessionManager.WARM_STANDBY) {
+            InstrumentsSessionManager.getInstance().release(instruments);
+        } else {
+            InstrumentsSessionManager.getInstance().shutdown(getUuid());
             instruments.shutdown();
         }
+        instruments = null;
     }
 
     public void install(App app) {
@@ -159,8 +210,119 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         return instruments.runJavaScript(javaScript);
     }
 
+    /**
+     * Runs a list of JavaScript snippets in one round trip to device.
+     *
+     * @param javaScripts JavaScript snippets, in the order of execution
+     *
+     * @return response lines of each snippet, in the same order as the snippets
+     */
+    public List<List<String>> runJavaScriptBatch(List<String> javaScripts) {
+        return instruments.runJavaScriptBatch(javaScripts);
+    }
+
+    /**
+     * Sends JavaScript to device without waiting for the response, so that host-side work can overlap with device
+     * evaluation.
+     *
+     * @param javaScript JavaScript to run
+     *
+     * @return future of response lines
+     */
+    public CompletableFuture<List<String>> runJavaScriptAsync(String javaScript) {
+        return instruments.runJavaScriptAsync(javaScript);
+    }
+
+    /**
+     * Runs JavaScript on device, and waits for the response no longer than the timeout.
+     *
+     * @param javaScript    JavaScript to run
+     * @param timeoutMillis deadline of the whole request
+     *
+     * @return response lines
+     */
+    public List<String> runJavaScript(String javaScript, long timeoutMillis) {
+        return instruments.runJavaScript(javaScript, timeoutMillis);
+    }
+
+    /**
+     * Cancels all JavaScript requests in flight, such as from another thread when a test step times out.
+     */
+    public void cancelJavaScripts() {
+        instruments.cancelAll();
+    }
+
     public List<String> loadElementTree() {
-        return instruments.runJavaScript("window.logElementTree();");
+        return query("window.logElementTree();");
+    }
+
+    /**
+     * Loads the element tree of a window as a compact dump of the helper runtime, which is posted back in chunks,
+     * instead of being printed on Instruments output. See {@link CompactElementTree}.
+     *
+     * @param index window index
+     *
+     * @return dump, with all chunks joined
+     */
+    public String loadCompactElementTree(int index) {
+        return loadDump(JavaScriptRuntime.dump(index, ELEMENT_TREE_CHUNK_SIZE));
+    }
+
+    /**
+     * Loads the subtree of an element, instead of the whole window, such as only a table view or a toolbar. The
+     * element keeps its index and the indexes of its ancestors, so {@link UIAElement#toJavaScript()} of it and its
+     * descendants still resolves from window root. Its ancestors only have the elements on the path to it, and the
+     * finders of its {@link UIAElement#window()} search the subtree.
+     *
+     * @param javaScriptPath JavaScript that resolves the element, such as "window.tableViews()[0]"
+     * @param maxDepth       number of levels of descendants to load, or -1 for all
+     *
+     * @return root element of the subtree
+     *
+     * @throws UIAException if the element cannot be found, or if it or one of its ancestors cannot be told from a
+     *                      sibling of the same type, name and rect, so that its index would be ambiguous
+     */
+    public UIAElement loadSubtree(String javaScriptPath, int maxDepth) throws UIAException {
+        long start = System.currentTimeMillis();
+        String dump = loadDump(JavaScriptRuntime.subtree(javaScriptPath, maxDepth, ELEMENT_TREE_CHUNK_SIZE));
+        UIAElement element = UIA.newInstance().parseCompactSubtree(dump);
+        element.window().setInstruments(instruments);
+        LOG.trace("time {} ms", System.currentTimeMillis() - start);
+        return element;
+    }
+
+    /*
+     * Evaluates a dump of helper runtime, and reads the rest of its chunks. Chunks are kept on device by dump id, so
+     * dumps of other threads do not mix in. If a chunk is gone, such as after Instruments restarts, the whole dump is
+     * taken again, once.
+     */
+    private String loadDump(String javaScript) {
+        for (int attempt = 0;; attempt++) {
+            String first = queryValue(javaScript);
+            int colon = first == null ? -1 : first.indexOf(':');
+            int colon2 = colon < 0 ? -1 : first.indexOf(':', colon + 1);
+            if (colon2 < 0) {
+                throw new UIAException("Cannot load element tree dump, got " + first);
+            }
+            int id = Integer.parseInt(first.substring(0, colon));
+            int count = Integer.parseInt(first.substring(colon + 1, colon2));
+            StringBuilder dump = new StringBuilder(first.length() * count).append(first, colon2 + 1, first.length());
+            int i = 1;
+            for (; i < count; i++) {
+                String chunk = queryValue(JavaScriptRuntime.chunk(id, i));
+                if (chunk == null) {
+                    break;
+                }
+                dump.append(chunk);
+            }
+            if (i == count) {
+                return dump.toString();
+            }
+            if (attempt > 0) {
+                throw new UIAException("Element tree dump is lost at chunk " + i + " of " + count);
+            }
+            LOG.warn("Element tree dump {} is lost at chunk {} of {}, dump again", id, i, count);
+        }
     }
 
     /**
@@ -185,9 +347,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
      * @return true if element identified by javascript exists
      */
     public boolean checkIsValid(String javaScript) {
-        String js = "var e = " + javaScript + "; UIALogger.logMessage(e.checkIsValid().toString());";
-        String res = Instruments.getLogMessage(instruments.runJavaScript(js));
-        return Boolean.parseBoolean(res);
+        return Boolean.parseBoolean(queryValue(javaScript + ".checkIsValid()"));
     }
 
     /**
@@ -216,8 +376,8 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
      */
     public <T extends UIAElement> boolean doesElementExist(String javaScript, Class<T> type, String name) {
         String js = "var e = " + javaScript + "; e.logElement();";
-        return instruments.runJavaScript(js).stream()
-            .filter(line -> line.contains(type.getSimpleName()))
+        return query(js).stream()
+            .filter(line -> line.contains(UIAElementType.of(type).getName()))
             .filter(line -> StringUtils.isEmpty(name) ? true : line.contains(name))
             .findFirst().isPresent();
     }
@@ -330,16 +490,58 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         }
     }
 
+    /**
+     * Waits for current UI to change from a window. This method loads full element tree.
+     *
+     * @param window        earlier snapshot of main window, such as {@link #getCurrentWindow()}
+     * @param timeoutMillis timeout
+     *
+     * @return changes since the earlier snapshot, or null if timeout
+     *
+     * @throws java.lang.InterruptedException in case of interruption
+     */
+    public UIAWindowDiff waitForChange(UIAWindow window, long timeoutMillis) throws InterruptedException {
+        return this.waitForChange(window, diff -> true, timeoutMillis);
+    }
+
+    /**
+     * Waits for current UI to change from a window, until the changes meet a condition, such as
+     * {@code diff -> diff.findAdded(UIAStaticText.class, "Done") != null}. This method loads full element tree.
+     *
+     * @param window        earlier snapshot of main window, such as {@link #getCurrentWindow()}
+     * @param condition     condition of all changes since the earlier snapshot
+     * @param timeoutMillis timeout
+     *
+     * @return changes since the earlier snapshot, or null if timeout
+     *
+     * @throws java.lang.InterruptedException in case of interruption
+     */
+    public UIAWindowDiff waitForChange(UIAWindow window, Predicate<UIAWindowDiff> condition, long timeoutMillis)
+        throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < end) {
+            try {
+                UIAWindowDiff diff = window.diff(mainWindow(0));
+                if (!diff.isEmpty() && condition.test(diff)) {
+                    return diff;
+                }
+            } catch (Exception ex) {
+                LOG.warn("{}", ex.getMessage());
+            }
+            Utils.sleep(1000, "wait for change of window");
+        }
+        return null;
+    }
+
     public <T extends UIAElement> String getElementName(String javaScript, Class<T> type) {
         String js = "var e = " + javaScript + "; e.logElement();";
-        String line = instruments.runJavaScript(js).stream()
-            .filter(l -> l.contains(type.getSimpleName())).findFirst().get();
+        String line = query(js).stream()
+            .filter(l -> l.contains(UIAElementType.of(type).getName())).findFirst().get();
         return UIA.newInstance().parseUIAElement(line).name();
     }
 
     public <T extends UIAElement> String getElementValue(String javaScript, Class<T> type) {
-        String js = "var e = " + javaScript + "; UIALogger.logMessage(e.value());";
-        return Instruments.getLogMessage(instruments.runJavaScript(js));
+        return queryValue(javaScript + ".value()");
     }
 
     public void setTextField(String javaScript, String value) {
@@ -367,12 +569,31 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
     }
 
     /**
-     * The internal currentWindow is also updated upon the successful return of this method.
+     * The internal currentWindow is also updated upon the successful return of this method. It is reused, without a
+     * round trip to device, if no script that may change UI has run since it was loaded, and it is not older than
+     * max age, see {@link #setElementTreeMaxAge(long)}.
      *
      * @return a UIAWindow object representing current window element tree
      */
     @Override
     public UIAWindow mainWindow() {
+        return this.mainWindow(elementTreeMaxAgeMillis);
+    }
+
+    /**
+     * Gets main window, from cache if no script that may change UI has run since it was loaded, see
+     * {@link Instruments#getGeneration()}, and it is not older than max age.
+     *
+     * @param maxAgeMillis maximum age of cached window, 0 to always load from device
+     *
+     * @return a UIAWindow object representing current window element tree
+     */
+    public UIAWindow mainWindow(long maxAgeMillis) {
+        UIAWindow window = getCachedWindow(maxAgeMillis);
+        instruments.getMetrics().recordTreeCache(window != null);
+        if (window != null) {
+            return window;
+        }
         try {
             return mw();
         } catch (Exception ex) {
@@ -381,17 +602,27 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         return mw();
     }
 
+    /**
+     * Sets maximum age of cached main window, which bounds how long a change made by the app itself, such as a
+     * finished network request, can go unnoticed. See {@link #SYSPROP_ELEMENT_TREE_MAX_AGE_MILLIS}.
+     *
+     * @param maxAgeMillis maximum age, 0 to disable the cache
+     */
+    public void setElementTreeMaxAge(long maxAgeMillis) {
+        this.elementTreeMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Drops cached main window, such as after the app is known to change UI by itself.
+     */
+    public synchronized void invalidateElementTree() {
+        currentGeneration = -1;
+    }
+
     @Override
     public UIAWindow windows(int index) throws UIAException {
         long start = System.currentTimeMillis();
-        List<String> lines = runJavaScript("app.windows()[" + index + "].logElementTree();");
-        try {
-            File f = this.saveIntoFile("window-element-tree", "txt", "");
-            FileUtils.writeLines(f, lines);
-        } catch (IOException ex) {
-            LOG.warn(ex.getMessage());
-        }
-        UIAWindow window = UIA.newInstance().parseElementTree(index, lines);
+        UIAWindow window = loadWindow(index, "app.windows()[" + index + "].logElementTree();");
         window.setInstruments(instruments);
         LOG.trace("time {} ms", System.currentTimeMillis() - start);
         return window;
@@ -414,12 +645,12 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public String model() {
-        return Instruments.getLogMessage(instruments.runJavaScript("UIALogger.logMessage(target.model());"));
+        return queryValue("target.model()");
     }
 
     @Override
     public String name() {
-        return Instruments.getLogMessage(instruments.runJavaScript("UIALogger.logMessage(target.name());"));
+        return queryValue("target.name()");
     }
 
     @Override
@@ -430,12 +661,12 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public String systemName() {
-        return Instruments.getLogMessage(instruments.runJavaScript("UIALogger.logMessage(target.systemName());"));
+        return queryValue("target.systemName()");
     }
 
     @Override
     public String systemVersion() {
-        return Instruments.getLogMessage(instruments.runJavaScript("UIALogger.logMessage(target.systemVersion());"));
+        return queryValue("target.systemVersion()");
     }
 
     @Override
@@ -505,7 +736,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void dragFromToForDuration(UIAElement fromElement, UIAElement toElement, int duration) {
-        this.dragFromToForDuration(fromElement.toJavaScript(), toElement.toJavaScript(), duration);
+        this.dragFromToForDuration(fromElement.toRuntimeJavaScript(), toElement.toRuntimeJavaScript(), duration);
     }
 
     @Override
@@ -521,7 +752,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void doubleTap(UIAElement element) {
-        this.doubleTap(element.toJavaScript());
+        this.doubleTap(element.toRuntimeJavaScript());
     }
 
     @Override
@@ -549,7 +780,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void flickFromTo(UIAElement fromElement, UIAElement toElement) {
-        this.flickFromTo(fromElement.toJavaScript(), toElement.toJavaScript());
+        this.flickFromTo(fromElement.toRuntimeJavaScript(), toElement.toRuntimeJavaScript());
     }
 
     @Override
@@ -566,7 +797,8 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void pinchCloseFromToForDuration(UIAElement fromElement, UIAElement toElement, int duration) {
-        this.pinchCloseFromToForDuration(fromElement.toJavaScript(), toElement.toJavaScript(), duration);
+        this.pinchCloseFromToForDuration(fromElement.toRuntimeJavaScript(), toElement.toRuntimeJavaScript(),
+            duration);
     }
 
     @Override
@@ -583,7 +815,8 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void pinchOpenFromToForDuration(UIAElement fromElement, UIAElement toElement, int duration) {
-        this.pinchOpenFromToForDuration(fromElement.toJavaScript(), toElement.toJavaScript(), duration);
+        this.pinchOpenFromToForDuration(fromElement.toRuntimeJavaScript(), toElement.toRuntimeJavaScript(),
+            duration);
     }
 
     @Override
@@ -597,6 +830,18 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         this.instruments.runJavaScript("target.tap(" + toCGString(x, y) + ");");
     }
 
+    /**
+     * Finds the topmost element at a point of main window, such as the element a tap at coordinates would hit.
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     *
+     * @return element, or null if there is none at the point
+     */
+    public UIAElement findElementAt(float x, float y) {
+        return this.mainWindow().topmostAt(x, y);
+    }
+
     public void tap(Class<? extends UIAElement> type, String name) {
         UIAElement element = this.mainWindow().findElement(type, name);
         this.tap(element);
@@ -604,7 +849,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void tap(UIAElement element) {
-        this.tap(element.toJavaScript());
+        this.tap(element.toRuntimeJavaScript());
     }
 
     @Override
@@ -619,7 +864,8 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 
     @Override
     public void touchAndHold(UIAElement element, int duration) {
-        this.instruments.runJavaScript("var e = " + element.toJavaScript() + "; e.touchAndHold(e, " + duration + ");");
+        this.instruments.runJavaScript("var e = " + element.toRuntimeJavaScript() + "; e.touchAndHold(e, " + duration
+            + ");");
     }
 
     @Override
@@ -630,16 +876,22 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
     @Override
     public void popTimeout() {
         this.instruments.runJavaScript("target.popTimeout();");
+        timeouts.poll();
+        this.saveTimeouts();
     }
 
     @Override
     public void pushTimeout(int timeoutValue) {
         this.instruments.runJavaScript("target.pushTimeout(" + timeoutValue + ");");
+        timeouts.push(timeoutValue);
+        this.saveTimeouts();
     }
 
     @Override
     public void setTimeout(int timeout) {
         this.instruments.runJavaScript("target.setTimeout(" + timeout + ");");
+        this.timeout = timeout;
+        this.saveTimeouts();
     }
 
     /**
@@ -669,13 +921,38 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * Keeps target timeout and its pushed values as session state, so that they are restored if Instruments restarts.
+     */
+    private void saveTimeouts() {
+        StringBuilder sb = new StringBuilder();
+        if (timeout != null) {
+            sb.append("target.setTimeout(").append(timeout).append(");");
+        }
+        for (Iterator<Integer> it = timeouts.descendingIterator(); it.hasNext();) {
+            sb.append("target.pushTimeout(").append(it.next()).append(");");
+        }
+        instruments.setSessionState("timeout", sb.toString());
+    }
+
+    /**
+     * Runs JavaScript that only reads from device, which is run again if Instruments restarts in the meantime.
+     */
+    private List<String> query(String javaScript) {
+        return instruments.runJavaScript(javaScript, Instruments.JAVASCRIPT_TIMEOUT_SECOND * 1000L, true);
+    }
+
+    private String queryValue(String javaScript) {
+        return instruments.evaluate(javaScript, Instruments.JAVASCRIPT_TIMEOUT_SECOND * 1000L, true);
+    }
+
     public void setAlertAutoDismiss() {
         this.alertHandler
             = "UIATarget.onAlert = function onAlert(alert) {UIALogger.logWarning(alert.name()); return false;}";
     }
 
     public List<String> logElementTree() {
-        return instruments.runJavaScript("window.logElementTree();");
+        return query("window.logElementTree();");
     }
 
     public Instruments getInstruments() {
@@ -702,7 +979,7 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
 //        return Instruments.getLogMessage(instruments.runJavaScript(js));
 //    }
     private Dimension loadDisplaySize() {
-        List<String> lines = this.instruments.runJavaScript("window.logElement();");
+        List<String> lines = query("window.logElement();");
         Dimension dimension = new Dimension();
         String line = lines.stream().filter((l) -> (l.startsWith("UIAWindow"))).findFirst().get();
         if (StringUtils.isNotEmpty(line)) {
@@ -713,18 +990,45 @@ public class UiAutomationDevice extends LibIMobileDevice implements UIATarget, U
         return dimension;
     }
 
-    private UIAWindow mw() {
-        long start = System.currentTimeMillis();
-        List<String> lines = loadElementTree();
+    private UIAWindow loadWindow(int index, String logElementTree) {
+        if (COMPACT_ELEMENT_TREE) {
+            String dump = loadCompactElementTree(index);
+            try {
+                File f = this.saveIntoFile("window-element-tree", "txt", "");
+                FileUtils.write(f, dump, Charset.defaultCharset());
+            } catch (IOException ex) {
+                LOG.warn(ex.getMessage());
+            }
+            return UIA.newInstance().parseCompactTree(index, dump);
+        }
+        List<String> lines = query(logElementTree);
         try {
             File f = this.saveIntoFile("window-element-tree", "txt", "");
             FileUtils.writeLines(f, lines);
         } catch (IOException ex) {
             LOG.warn(ex.getMessage());
         }
-        UIAWindow window = UIA.newInstance().parseElementTree(lines);
+        return UIA.newInstance().parseElementTree(index, lines);
+    }
+
+    private synchronized UIAWindow getCachedWindow(long maxAgeMillis) {
+        if (currentWindow != null && currentGeneration == instruments.getGeneration()
+            && System.currentTimeMillis() - currentLoaded < maxAgeMillis) {
+            return currentWindow;
+        }
+        return null;
+    }
+
+    private UIAWindow mw() {
+        long start = System.currentTimeMillis();
+        long generation = instruments.getGeneration();
+        UIAWindow window = loadWindow(0, "window.logElementTree();");
         window.setInstruments(instruments);
-        this.currentWindow = window;
+        synchronized (this) {
+            this.currentWindow = window;
+            this.currentGeneration = generation;
+            this.currentLoaded = start;
+        }
         LOG.trace("time {} ms", System.currentTimeMillis() - start);
         return window;
     }
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact element tree dump, as produced by thx.t() of the on-device helper runtime. Unlike logElementTree(), it
+ * has label, value and visibility of each element, and it is posted back as the value of an evaluation, instead of
+ * being printed on Instruments output.
+ * <p>
+ * A dump is "types;records", where types is a comma separated list of element types, and each record, in
+ * depth-first order, is "type,children,x,y,width,height,flags," followed by name, label and value, each as
+ * "length:text", or "~" if null. Type is an index into types, children is the number of child records that follow,
+ * and flags are 1 visible, 2 enabled and 4 keyboard focus. For example,
+ * <pre>
+ * UIAWindow,UIAButton;0,1,0,0,320,568,3,~~~1,0,9.5,24.5,301,29,3,2:OK2:OK~
+ * </pre>
+ *
+ * @author linsong wang
+ */
+public final class CompactElementTree {
+
+    /**
+     * Name of elements without a name, as printed by logElementTree().
+     */
+    public static final String NULL_NAME = "(null)";
+
+    private static final char TYPES_END = ';';
+
+    private static final char FIELD_END = ',';
+
+    private static final char LENGTH_END = ':';
+
+    private static final char NULL = '~';
+
+    private static final int VISIBLE = 1;
+
+    private static final int ENABLED = 2;
+
+    private static final int KEYBOARD_FOCUS = 4;
+
+    private final String dump;
+
+    private int pos;
+
+    private int children;
+
+    private CompactElementTree(String dump) {
+        this.dump = dump;
+    }
+
+    /**
+     * Decodes a dump into the same model as {@link UIA#parseElementTree(int, java.util.List)}, with the state of
+     * each element.
+     *
+     * @param index window index
+     * @param dump  dump, with all chunks joined
+     *
+     * @return window
+     *
+     * @throws UIAException if the dump is malformed
+     */
+    public static UIAWindow decode(int index, String dump) throws UIAException {
+        try {
+            return new CompactElementTree(dump).decode(index);
+        } catch (RuntimeException ex) {
+            if (ex instanceof UIAException) {
+                throw ex;
+            }
+            throw new UIAException("Cannot decode element tree dump", ex);
+        }
+    }
+
+    /**
+     * Decodes a dump of a subtree, as produced by thx.u() of the helper runtime. It is "window,index,index...;"
+     * followed by a dump of the window, in which each ancestor of the subtree only has the element on the path. The
+     * ancestors get the indexes of the path, so that the element resolves from window root, such as with
+     * {@link UIAElement#toJavaScript()}.
+     *
+     * @param dump dump, with all chunks joined
+     *
+     * @return root element of the subtree, whose {@link UIAElement#window()} has the path to it
+     *
+     * @throws UIAException if the dump is malformed
+     */
+    public static UIAElement decodeSubtree(String dump) throws UIAException {
+        int end = dump.indexOf(TYPES_END);
+        if (end < 0) {
+            throw new UIAException("Cannot find element path in element tree dump");
+        }
+        String[] path = dump.substring(0, end).split(",");
+        UIAElement element;
+        try {
+            element = new CompactElementTree(dump.substring(end + 1)).decode(Integer.parseInt(path[0]));
+            for (int i = 1; i < path.length; i++) {
+                element = element.elements()[0];
+                element.setIndex(Integer.parseInt(path[i]));
+            }
+        } catch (RuntimeException ex) {
+            if (ex instanceof UIAException) {
+                throw ex;
+            }
+            throw new UIAException("Cannot decode element tree dump", ex);
+        }
+        return element;
+    }
+
+    /**
+     * Encodes an element tree, which is the reverse of {@link #decode(int, String)}. Elements without state are
+     * encoded as visible and enabled, with null label and value.
+     *
+     * @param root root element, usually a window
+     *
+     * @return dump
+     */
+    public static String encode(UIAElement root) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> types = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        encode(root, -1, ids, types, records);
+        return String.join(",", types) + TYPES_END + records;
+    }
+
+    /**
+     * Encodes the subtree of an element, which is the reverse of {@link #decodeSubtree(String)}.
+     *
+     * @param element  root element of the subtree
+     * @param maxDepth number of levels of descendants to encode, or -1 for all
+     *
+     * @return dump
+     */
+    public static String encodeSubtree(UIAElement element, int maxDepth) {
+        List<UIAElement> chain = new ArrayList<>();
+        for (UIAElement e = element; e != null; e = e.parent()) {
+            chain.add(0, e);
+        }
+        if (!(chain.get(0) instanceof UIAWindow)) {
+            throw new UIAException("Element is not in a window");
+        }
+        StringBuilder path = new StringBuilder().append(chain.get(0).index());
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> types = new ArrayList<>();
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < chain.size() - 1; i++) {
+            path.append(FIELD_END).append(chain.get(i + 1).index());
+            record(chain.get(i), 1, ids, types, records);
+        }
+        encode(element, maxDepth, ids, types, records);
+        return path.toString() + TYPES_END + String.join(",", types) + TYPES_END + records;
+    }
+
+    private UIAWindow decode(int index) {
+        int end = dump.indexOf(TYPES_END);
+        if (end < 0) {
+            throw new UIAException("Cannot find element types in element tree dump");
+        }
+        String[] types = dump.substring(0, end).split(",");
+        pos = end + 1;
+
+        List<UIAElement> parents = new ArrayList<>();
+        List<Integer> remaining = new ArrayList<>();
+        UIAElement root = readElement(types);
+        if (!(root instanceof UIAWindow)) {
+            throw new UIAException("Expect UIAWindow as root of element tree dump, got " + root.getClass());
+        }
+        parents.add(root);
+        remaining.add(children);
+        while (!parents.isEmpty()) {
+            int top = parents.size() - 1;
+            int n = remaining.get(top);
+            if (n == 0) {
+                parents.remove(top);
+                remaining.remove(top);
+                continue;
+            }
+            remaining.set(top, n - 1);
+            UIAElement element = readElement(types);
+            parents.get(top).addElement(element);
+            if (children > 0) {
+                parents.add(element);
+                remaining.add(children);
+            }
+        }
+        if (pos != dump.length()) {
+            throw new UIAException("Unexpected data at " + pos + " of element tree dump");
+        }
+        UIAWindow window = (UIAWindow) root;
+        window.setIndex(index);
+        return window;
+    }
+
+    private UIAElement readElement(String[] types) {
+        UIAElement element = UIA.newElement(types[readInt()]);
+        children = readInt();
+        float x = readFloat();
+        float y = readFloat();
+        float w = readFloat();
+        float h = readFloat();
+        int flags = readInt();
+        String name = readString();
+        String label = readString();
+        String value = readString();
+        element.setName(name == null ? NULL_NAME : name);
+        element.setRect(new Rectangle2D.Float(x, y, w, h));
+        element.setState(new UIAElementState(true, label, value, (flags & VISIBLE) != 0, (flags & ENABLED) != 0,
+            (flags & KEYBOARD_FOCUS) != 0));
+        return element;
+    }
+
+    private int readInt() {
+        int end = fieldEnd(FIELD_END);
+        int v = parseInt(end);
+        pos = end + 1;
+        return v;
+    }
+
+    private float readFloat() {
+        int end = fieldEnd(FIELD_END);
+        float v = UIA.scanFloat(dump, pos, end);
+        if (Float.isNaN(v)) {
+            v = Float.parseFloat(dump.substring(pos, end));
+        }
+        pos = end + 1;
+        return v;
+    }
+
+    private String readString() {
+        if (pos < dump.length() && dump.charAt(pos) == NULL) {
+            pos++;
+            return null;
+        }
+        int end = fieldEnd(LENGTH_END);
+        int start = end + 1 + parseInt(end);
+        pos = start;
+        if (start > dump.length()) {
+            throw new UIAException("Unexpected end of element tree dump");
+        }
+        return dump.substring(end + 1, start);
+    }
+
+    private int parseInt(int end) {
+        if (end == pos) {
+            throw new UIAException("Expect a number at " + pos + " of element tree dump");
+        }
+        int v = 0;
+        for (int i = pos; i < end; i++) {
+            char c = dump.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new UIAException("Expect a number at " + pos + " of element tree dump");
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private int fieldEnd(char c) {
+        int end = dump.indexOf(c, pos);
+        if (end < 0) {
+            throw new UIAException("Unexpected end of element tree dump");
+        }
+        return end;
+    }
+
+    private static void encode(UIAElement e, int depth, Map<String, Integer> ids, List<String> types,
+        StringBuilder records) {
+        UIAElement[] children = depth == 0 ? new UIAElement[0] : e.elements();
+        record(e, children.length, ids, types, records);
+        for (UIAElement child : children) {
+            encode(child, depth - 1, ids, types, records);
+        }
+    }
+
+    private static void record(UIAElement e, int children, Map<String, Integer> ids, List<String> types,
+        StringBuilder records) {
+        String type = e.type().getName();
+        Integer id = ids.get(type);
+        if (id == null) {
+            id = types.size();
+            ids.put(type, id);
+            types.add(type);
+        }
+        UIAElementState s = e.state();
+        int flags = s == null ? VISIBLE | ENABLED : (s.isVisible() ? VISIBLE : 0) | (s.isEnabled() ? ENABLED : 0)
+            | (s.hasKeyboardFocus() ? KEYBOARD_FOCUS : 0);
+        Rectangle2D.Float r = e.rect();
+        records.append(id).append(FIELD_END).append(children).append(FIELD_END)
+            .append(format(r.x)).append(FIELD_END).append(format(r.y)).append(FIELD_END)
+            .append(format(r.width)).append(FIELD_END).append(format(r.height)).append(FIELD_END)
+            .append(flags).append(FIELD_END);
+        appendString(records, NULL_NAME.equals(e.name()) ? null : e.name());
+        appendString(records, s == null ? null : s.label());
+        appendString(records, s == null ? null : s.value());
+    }
+
+    private static String format(float f) {
+        return f == (int) f ? Integer.toString((int) f) : Float.toString(f);
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append(NULL);
+        } else {
+            sb.append(s.length()).append(LENGTH_END).append(s);
+        }
+    }
+}
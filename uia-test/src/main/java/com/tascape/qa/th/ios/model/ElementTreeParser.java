@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Single-pass parser of element tree lines, as logged by logElementTree(). Lines are pushed one at a time, and each
+ * element is attached to its parent as soon as its line is complete, so parsing can start while lines are still
+ * arriving. The parent of an element is the nearest preceding element with fewer leading tabs, which is tracked with
+ * a stack of open elements; "elements: {" and "}" lines carry no information beyond the indentation and are skipped.
+ * <p>
+ * Lines logged before the UIAWindow line, such as the echoed script, are ignored. A name with line breaks spans
+ * several lines, which are joined until the line ends with the element rect.
+ * <p>
+ * A parser is good for one element tree, and is not thread-safe.
+ *
+ * @author linsong wang
+ */
+public class ElementTreeParser implements Consumer<String> {
+
+    private static final String UIA_CLASS = "UIA";
+
+    private static final String UIA_WINDOW = "UIAWindow";
+
+    private static final String ELEMENTS = "elements: {";
+
+    private static final String END_ELEMENTS = "}";
+
+    private static final String END_RECT = "}}";
+
+    private final UIA uia;
+
+    private final int index;
+
+    private final Deque<Node> open = new ArrayDeque<>();
+
+    private UIAWindow window;
+
+    private StringBuilder pending;
+
+    private int pendingDepth;
+
+    private int count;
+
+    /**
+     * @param uia   element factory
+     * @param index window index
+     */
+    public ElementTreeParser(UIA uia, int index) {
+        this.uia = uia;
+        this.index = index;
+    }
+
+    /**
+     * Parses one more line.
+     *
+     * @param line line of element tree
+     *
+     * @throws UIAException if an element line cannot be parsed
+     */
+    @Override
+    public void accept(String line) throws UIAException {
+        if (pending != null) {
+            pending.append('\n').append(line);
+            if (isComplete(line)) {
+                String text = pending.toString();
+                pending = null;
+                addElement(pendingDepth, text);
+            }
+            return;
+        }
+
+        int depth = 0;
+        while (depth < line.length() && line.charAt(depth) == '\t') {
+            depth++;
+        }
+        if (window == null) {
+            if (depth == 0 && line.startsWith(UIA_WINDOW)) {
+                startElement(0, line);
+            }
+            return;
+        }
+        if (line.startsWith(UIA_CLASS, depth)) {
+            startElement(depth, line.substring(depth));
+        } else if (line.startsWith(ELEMENTS, depth)) {
+            acceptRest(line, depth + ELEMENTS.length());
+        } else if (line.startsWith(END_ELEMENTS, depth)) {
+            acceptRest(line, depth + END_ELEMENTS.length());
+        }
+    }
+
+    /**
+     * Gets the parsed window.
+     *
+     * @return window, with all elements parsed so far
+     *
+     * @throws UIAException if no UIAWindow line was seen
+     */
+    public UIAWindow getWindow() throws UIAException {
+        if (window == null) {
+            throw new UIAException("Cannot parse element tree, no UIAWindow found");
+        }
+        return window;
+    }
+
+    /**
+     * Gets the number of elements parsed so far, window included.
+     *
+     * @return number of elements
+     */
+    public int getElementCount() {
+        return count;
+    }
+
+    /*
+     * Some logged trees have two tokens glued on one line, such as "} \t}" or "elements: { \tUIAStaticText ...".
+     */
+    private void acceptRest(String line, int start) {
+        String rest = StringUtils.stripStart(line.substring(start), " ");
+        if (!rest.isEmpty()) {
+            accept(rest);
+        }
+    }
+
+    private void startElement(int depth, String text) {
+        if (isComplete(text)) {
+            addElement(depth, text);
+        } else {
+            pending = new StringBuilder(text);
+            pendingDepth = depth;
+        }
+    }
+
+    private void addElement(int depth, String text) {
+        UIAElement element = uia.parseUIAElement(StringUtils.stripEnd(text, null));
+        count++;
+        if (window == null) {
+            window = (UIAWindow) element;
+            window.setIndex(index);
+            open.push(new Node(0, window));
+            return;
+        }
+        depth = Math.max(depth, 1);
+        while (open.peek().depth >= depth) {
+            open.pop();
+        }
+        open.peek().element.addElement(element);
+        open.push(new Node(depth, element));
+    }
+
+    private static boolean isComplete(String text) {
+        return StringUtils.stripEnd(text, null).endsWith(END_RECT);
+    }
+
+    private static class Node {
+        private final int depth;
+
+        private final UIAElement element;
+
+        Node(int depth, UIAElement element) {
+            this.depth = depth;
+            this.element = element;
+        }
+    }
+}
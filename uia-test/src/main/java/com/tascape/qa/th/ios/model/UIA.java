@@ -16,9 +16,16 @@
 package com.tascape.qa.th.ios.model;
 
 import java.awt.geom.Rectangle2D;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -37,9 +44,15 @@ public class UIA {
     private static final Pattern PATTERN_UIA = Pattern.compile("(UIA.+?) \"(.+?)\" (\\{\\{.+?\\}, \\{.+?\\}\\})",
         Pattern.DOTALL | Pattern.MULTILINE);
 
+    private static final Pattern PATTERN_GLUED = Pattern.compile("(\t*(?:elements: \\{|\\})) (\t+.*)");
+
     private static final String UIA_CLASS = "UIA";
 
-    private static final String ELEMENTS = "elements: {";
+    private static final String NAME_START = " \"";
+
+    private static final String RECT_START = "\" {{";
+
+    private static final double[] POWERS_OF_TEN = new double[]{1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
 
     public static UIA newInstance() {
         return new UIA();
@@ -49,32 +62,90 @@ public class UIA {
         return this.parseElementTree(0, elementTree);
     }
 
+    /**
+     * Parses an element tree in one pass. The list is not modified.
+     *
+     * @param index       window index
+     * @param elementTree lines of element tree, as logged by logElementTree()
+     *
+     * @return window
+     *
+     * @throws UIAException if no window is found, or any element cannot be parsed
+     */
     public UIAWindow parseElementTree(int index, List<String> elementTree) throws UIAException {
-        while (!elementTree.get(0).startsWith(UIAWindow.class.getSimpleName())) {
-            elementTree.remove(0);
-        }
-        UIAWindow window = null;
-        while (elementTree.size() > 0) {
-            String line = elementTree.remove(0);
-            if (line.startsWith("UIAWindow")) {
-                window = (UIAWindow) parseUIAElement(line);
-                break;
+        ElementTreeParser parser = new ElementTreeParser(this, index);
+        elementTree.forEach(parser);
+        return parser.getWindow();
+    }
+
+    /**
+     * Parses an element tree in one pass, while it is read.
+     *
+     * @param index  window index
+     * @param reader reader of element tree, as logged by logElementTree()
+     *
+     * @return window
+     *
+     * @throws UIAException if the tree cannot be read, or no window is found, or any element cannot be parsed
+     */
+    public UIAWindow parseElementTree(int index, Reader reader) throws UIAException {
+        ElementTreeParser parser = new ElementTreeParser(this, index);
+        BufferedReader br = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        try {
+            for (String line = br.readLine(); line != null; line = br.readLine()) {
+                parser.accept(line);
             }
+        } catch (IOException ex) {
+            throw new UIAException("Cannot read element tree", ex);
         }
-        if (window == null) {
-            throw new UIAException("Cannot parse element tree, no UIAWindow found");
-        }
-        window.setIndex(index);
-        if (!elementTree.isEmpty()) {
-            parseElements(window, elementTree.subList(0, elementTree.size()));
-        }
-        return window;
+        return parser.getWindow();
+    }
+
+    /**
+     * Decodes an element tree dumped in compact form by the on-device helper runtime, see {@link CompactElementTree}.
+     *
+     * @param index window index
+     * @param dump  dump, with all chunks joined
+     *
+     * @return window, with state of all elements
+     *
+     * @throws UIAException if the dump is malformed
+     */
+    public UIAWindow parseCompactTree(int index, String dump) throws UIAException {
+        return CompactElementTree.decode(index, dump);
+    }
+
+    /**
+     * Decodes the subtree of an element dumped in compact form by the on-device helper runtime, see
+     * {@link CompactElementTree#decodeSubtree(String)}.
+     *
+     * @param dump dump, with all chunks joined
+     *
+     * @return root element of the subtree, in a window that only has the path to it
+     *
+     * @throws UIAException if the dump is malformed
+     */
+    public UIAElement parseCompactSubtree(String dump) throws UIAException {
+        return CompactElementTree.decodeSubtree(dump);
     }
 
+    /**
+     * Parses one element line, such as 'UIAButton "OK" {{9.5, 24.5}, {301, 29}}'. The name may span several lines.
+     *
+     * @param uiaLine element line
+     *
+     * @return element, with type, name and rect
+     *
+     * @throws UIAException if the line cannot be parsed
+     */
     public UIAElement parseUIAElement(String uiaLine) throws UIAException {
+        UIAElement e = scanUIAElement(uiaLine);
+        if (e != null) {
+            return e;
+        }
         Matcher m = PATTERN_UIA.matcher(uiaLine);
         if (m.matches()) {
-            UIAElement e = newElement(m.group(1));
+            e = newElement(m.group(1));
             e.setName(m.group(2));
             String[] r = m.group(3).replaceAll("\\{", "").replaceAll("\\}", "").split(",");
             e.setRect(new Rectangle2D.Float(Float.parseFloat(r[0]), Float.parseFloat(r[1]),
@@ -84,13 +155,182 @@ public class UIA {
         throw new UIAException("Cannot parse " + uiaLine);
     }
 
-    private void clean(List<String> elementTree) {
-        while (!elementTree.get(0).startsWith(UIAWindow.class.getSimpleName())) {
-            elementTree.remove(0);
+    /*
+     * Scans the common form of element line without regex. Returns null on anything unusual, such as a name with
+     * '" {{' in it, or a coordinate with an exponent, which is left to PATTERN_UIA.
+     */
+    private UIAElement scanUIAElement(String line) {
+        int typeEnd = line.indexOf(NAME_START);
+        if (typeEnd <= UIA_CLASS.length() || !line.startsWith(UIA_CLASS)) {
+            return null;
         }
+        int nameStart = typeEnd + NAME_START.length();
+        int nameEnd = line.indexOf(RECT_START, nameStart);
+        if (nameEnd <= nameStart || line.indexOf(RECT_START, nameEnd + 1) >= 0 || !line.endsWith("}}")) {
+            return null;
+        }
+
+        int end = line.length() - 2;
+        int p = nameEnd + RECT_START.length();
+        int q = line.indexOf(", ", p);
+        float x = q < 0 ? Float.NaN : scanFloat(line, p, q);
+        p = q + 2;
+        q = line.indexOf("}, {", p);
+        float y = q < 0 ? Float.NaN : scanFloat(line, p, q);
+        p = q + 4;
+        q = line.indexOf(", ", p);
+        float w = q < 0 ? Float.NaN : scanFloat(line, p, q);
+        float h = q < 0 ? Float.NaN : scanFloat(line, q + 2, end);
+        if (Float.isNaN(x) || Float.isNaN(y) || Float.isNaN(w) || Float.isNaN(h)) {
+            return null;
+        }
+
+        UIAElement e = newElement(line.substring(0, typeEnd));
+        e.setName(line.substring(nameStart, nameEnd));
+        e.setRect(new Rectangle2D.Float(x, y, w, h));
+        return e;
     }
 
-    private void parseElements(UIAElement root, List<String> elementTree) throws UIAException {
+    /*
+     * Parses [-]digits[.digits] exactly as Float.parseFloat does, or returns NaN. With at most 15 digits, and at most
+     * 8 of them after the point, the double quotient is close enough to never round to a different float.
+     */
+    static float scanFloat(String s, int from, int to) {
+        int i = from;
+        boolean negative = i < to && s.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long digits = 0;
+        int count = 0;
+        int scale = -1;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = digits * 10 + (c - '0');
+                count++;
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else {
+                return Float.NaN;
+            }
+        }
+        if (count == 0 || count > 15 || scale > 8) {
+            return Float.NaN;
+        }
+        float f = (float) (scale > 0 ? digits / POWERS_OF_TEN[scale] : digits);
+        return negative ? -f : f;
+    }
+
+    static UIAElement newElement(String uia) {
+        return UIAElementType.newElement(uia);
+    }
+
+    /**
+     * Parses the element tree fixtures, and checks that the scanners of this class and {@link ElementTreeParser}, the
+     * streaming reader path and the {@link CompactElementTree} codec all give the same trees as the line-splitting
+     * regex parser they replaced. The regex parser drops or misplaces elements on glued lines, such as
+     * "elements: { \tUIA..." and "} \t}" of element-tree.txt, so it is given the fixture with those lines split in
+     * two, while the other paths get the fixture as logged. It runs without device.
+     *
+     * @param args none
+     *
+     * @throws Exception if any tree differs
+     */
+    public static void main(String[] args) throws Exception {
+        UIA uia = UIA.newInstance();
+        for (String fixture : new String[]{"element-tree.txt", "element-tree-0.txt", "element-tree-1.txt"}) {
+            List<String> elementTree = IOUtils.readLines(UIA.class.getResourceAsStream(fixture),
+                Charset.defaultCharset());
+            UIAWindow w = uia.parseElementTree(elementTree);
+            LOG.debug("element tree\n{}", w);
+            LOG.debug("json\n{}", w.toJson().toString(2));
+
+            check(fixture + " regex", parseElementTreeByRegex(0, unglue(elementTree)), w);
+            check(fixture + " unglued", w, uia.parseElementTree(unglue(elementTree)));
+            check(fixture + " reader", w, uia.parseElementTree(0, new StringReader(String.join("\n", elementTree))));
+            check(fixture + " compact", w, uia.parseCompactTree(0, CompactElementTree.encode(w)));
+            LOG.info("{}: {} elements, same as regex parser, compact codec round-trips", fixture, w.count());
+        }
+        {
+            List<String> elementTree = IOUtils.readLines(UIA.class.getResourceAsStream("element-tree.txt"),
+                Charset.defaultCharset());
+            UIAWindow w = uia.parseElementTree(elementTree);
+            try {
+                UIAElement element = w.findElement(UIAStaticText.class, "Recipes");
+                LOG.debug("{}", element.toJavaScript());
+                LOG.debug("{}", element.toJson().toString(2));
+                LOG.debug("{}", element.toString());
+            } catch (Exception ex) {
+                LOG.error("", ex);
+            }
+        }
+    }
+
+    /*
+     * Checks that two trees have the same element classes, indexes, names and rects, and print the same.
+     */
+    private static void check(String what, UIAElement expected, UIAElement actual) throws UIAException {
+        Deque<UIAElement[]> stack = new ArrayDeque<>();
+        stack.push(new UIAElement[]{expected, actual});
+        while (!stack.isEmpty()) {
+            UIAElement[] pair = stack.pop();
+            UIAElement e = pair[0];
+            UIAElement a = pair[1];
+            if (e.getClass() != a.getClass() || e.index() != a.index() || !Objects.equals(e.name(), a.name())
+                || !e.rect().equals(a.rect()) || e.elements().length != a.elements().length) {
+                throw new UIAException(what + ": expect " + describe(e) + ", got " + describe(a));
+            }
+            for (int i = 0; i < e.elements().length; i++) {
+                stack.push(new UIAElement[]{e.elements()[i], a.elements()[i]});
+            }
+        }
+        if (!expected.toString().equals(actual.toString())) {
+            throw new UIAException(what + ": trees print differently");
+        }
+    }
+
+    private static String describe(UIAElement e) {
+        return e.getClass().getSimpleName() + " " + e.index() + " \"" + e.name() + "\" " + e.rect() + " with "
+            + e.elements().length + " elements";
+    }
+
+    /*
+     * Splits glued lines, such as "elements: { \tUIA..." or "} \t}", into two, the way they would normally be logged.
+     */
+    private static List<String> unglue(List<String> elementTree) {
+        List<String> lines = new ArrayList<>();
+        for (String line : elementTree) {
+            for (Matcher m = PATTERN_GLUED.matcher(line); m.matches(); m = PATTERN_GLUED.matcher(line)) {
+                lines.add(m.group(1));
+                line = m.group(2);
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /*
+     * The line-splitting parser with PATTERN_UIA only, as used before ElementTreeParser, kept as reference of main().
+     */
+    private static UIAWindow parseElementTreeByRegex(int index, List<String> elementTree) throws UIAException {
+        List<String> lines = new ArrayList<>(elementTree);
+        while (!lines.isEmpty() && !lines.get(0).startsWith(UIAWindow.class.getSimpleName())) {
+            lines.remove(0);
+        }
+        if (lines.isEmpty()) {
+            throw new UIAException("Cannot parse element tree, no UIAWindow found");
+        }
+        UIAWindow window = (UIAWindow) parseUIAElementByRegex(lines.remove(0));
+        window.setIndex(index);
+        parseElementsByRegex(window, lines);
+        return window;
+    }
+
+    private static void parseElementsByRegex(UIAElement root, List<String> elementTree) throws UIAException {
         List<String> lines = elementTree.stream().map(l -> StringUtils.replace(l, "\t", "", 1))
             .collect(Collectors.toList());
         UIAElement element = null;
@@ -98,143 +338,38 @@ public class UIA {
         String uiaLine = "";
         while (lines.size() > 0) {
             String line = lines.remove(0);
-
             if (line.startsWith(UIA_CLASS)) {
                 uiaLine = line;
-
-            } else if (line.startsWith(ELEMENTS)) {
+            } else if (line.startsWith("elements: {")) {
                 childLines = new ArrayList<>();
-
             } else if (line.startsWith("\t")) {
                 childLines.add(line);
-
             } else if (line.startsWith("}")) {
-                parseElements(element, childLines);
+                parseElementsByRegex(element, childLines);
                 childLines = new ArrayList<>();
-
             } else if (!childLines.isEmpty()) {
                 childLines.add(line);
             } else if (StringUtils.isNotEmpty(uiaLine)) {
                 uiaLine += "\n" + line;
             }
-
             if (uiaLine.endsWith("}}")) {
-                element = parseUIAElement(uiaLine);
+                element = parseUIAElementByRegex(uiaLine);
                 uiaLine = "";
                 root.addElement(element);
             }
         }
     }
 
-    private static UIAElement newElement(String uia) {
-        switch (uia) {
-            case "UIAActionSheet":
-                return new UIAActionSheet();
-            case "UIAActivityIndicator":
-                return new UIAActivityIndicator();
-            case "UIAActivityView":
-                return new UIAActivityView();
-            case "UIAAlert":
-                return new UIAAlert();
-            case "UIAButton":
-                return new UIAButton();
-            case "UIACollectionCell":
-                return new UIACollectionCell();
-            case "UIACollectionView":
-                return new UIACollectionView();
-            case "UIAEditingMenu":
-                return new UIAEditingMenu();
-            case "UIAElement":
-                return new UIAElement();
-            case "UIAImage":
-                return new UIAImage();
-            case "UIAKey":
-                return new UIAKey();
-            case "UIAKeyboard":
-                return new UIAKeyboard();
-            case "UIALink":
-                return new UIALink();
-            case "UIANavigationBar":
-                return new UIANavigationBar();
-            case "UIAPageIndicator":
-                return new UIAPageIndicator();
-            case "UIAPicker":
-                return new UIAPicker();
-            case "UIAPickerWheel":
-                return new UIAPickerWheel();
-            case "UIAPopover":
-                return new UIAPopover();
-            case "UIAProgressIndicator":
-                return new UIAProgressIndicator();
-            case "UIAScrollView":
-                return new UIAScrollView();
-            case "UIASearchBar":
-                return new UIASearchBar();
-            case "UIASecureTextField":
-                return new UIASecureTextField();
-            case "UIASegmentedControl":
-                return new UIASegmentedControl();
-            case "UIASlider":
-                return new UIASlider();
-            case "UIAStaticText":
-                return new UIAStaticText();
-            case "UIAStatusBar":
-                return new UIAStatusBar();
-            case "UIASwitch":
-                return new UIASwitch();
-            case "UIATabBar":
-                return new UIATabBar();
-            case "UIATableCell":
-                return new UIATableCell();
-            case "UIATableGroup":
-                return new UIATableGroup();
-            case "UIATableView":
-                return new UIATableView();
-            case "UIATextField":
-                return new UIATextField();
-            case "UIATextView":
-                return new UIATextView();
-            case "UIAToolbar":
-                return new UIAToolbar();
-            case "UIAWebView":
-                return new UIAWebView();
-            case "UIAWindow":
-                return new UIAWindow();
-            default:
-                LOG.warn("Unkown element type {}, use UIAElement", uia);
-                return new UIAElement();
-        }
-    }
-
-    public static void main(String[] args) throws Exception {
-        UIA uia = UIA.newInstance();
-        {
-            List<String> elementTree = IOUtils.readLines(UIA.class.getResourceAsStream("element-tree.txt"),
-                Charset.defaultCharset());
-            UIAWindow w = uia.parseElementTree(elementTree);
-            LOG.debug("element tree\n{}", w);
-            LOG.debug("json\n{}", w.toJson().toString(2));
-
-            try {
-                UIAElement element = w.findElement(UIAStaticText.class, "Recipes");
-                LOG.debug("{}", element.toJavaScript());
-                LOG.debug("{}", element.toJson().toString(2));
-                LOG.debug("{}", element.toString());
-            } catch (Exception ex) {
-                LOG.error("", ex);
-            }
-        }
-        {
-            List<String> elementTree = IOUtils.readLines(UIA.class.getResourceAsStream("element-tree-0.txt"),
-                Charset.defaultCharset());
-            UIAWindow w = uia.parseElementTree(elementTree);
-            LOG.debug(w.toJson().toString(2));
-        }
-        {
-            List<String> elementTree = IOUtils.readLines(UIA.class.getResourceAsStream("element-tree-1.txt"),
-                Charset.defaultCharset());
-            UIAWindow w = uia.parseElementTree(elementTree);
-            LOG.debug(w.toJson().toString(2));
+    private static UIAElement parseUIAElementByRegex(String uiaLine) throws UIAException {
+        Matcher m = PATTERN_UIA.matcher(uiaLine);
+        if (!m.matches()) {
+            throw new UIAException("Cannot parse " + uiaLine);
         }
+        UIAElement e = newElement(m.group(1));
+        e.setName(m.group(2));
+        String[] r = m.group(3).replaceAll("\\{", "").replaceAll("\\}", "").split(",");
+        e.setRect(new Rectangle2D.Float(Float.parseFloat(r[0]), Float.parseFloat(r[1]), Float.parseFloat(r[2]),
+            Float.parseFloat(r[3])));
+        return e;
     }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only element tree of a window, stored as primitive arrays instead of element objects, for keeping many
+ * snapshots, such as tree history of a long device session for diffs and failure reports. It takes a fraction of
+ * the memory of {@link UIAWindow}: per element, a parent, a type ordinal of {@link UIAElementType}, a name
+ * reference, a child index, a subtree end and four rect floats. Element names are shared among elements.
+ * <p>
+ * Elements are numbered in depth-first order, window as 0, so the subtree of an element is a range of numbers.
+ * Elements are materialised only on access, see {@link #toWindow()} and {@link #element(int)}. Element state,
+ * label and value are not kept.
+ *
+ * @author linsong wang
+ */
+public final class UIACompactTree {
+
+    private final String[] names;
+
+    private final int[] parent;
+
+    private final int[] type;
+
+    private final int[] name;
+
+    private final int[] index;
+
+    private final int[] end;
+
+    private final float[] rect;
+
+    private UIACompactTree(UIAWindow window, int size) {
+        this.parent = new int[size];
+        this.type = new int[size];
+        this.name = new int[size];
+        this.index = new int[size];
+        this.end = new int[size];
+        this.rect = new float[size * 4];
+
+        Map<String, Integer> nameIds = new HashMap<>();
+        List<String> nameList = new ArrayList<>();
+        Deque<UIAElement> stack = new ArrayDeque<>();
+        Deque<Integer> parents = new ArrayDeque<>();
+        stack.push(window);
+        parents.push(-1);
+        int n = 0;
+        while (!stack.isEmpty()) {
+            UIAElement e = stack.pop();
+            int p = parents.pop();
+            parent[n] = p;
+            type[n] = e.type().ordinal();
+            name[n] = id(e.name(), nameIds, nameList);
+            index[n] = e.index();
+            Rectangle2D.Float r = e.rect();
+            rect[n * 4] = r.x;
+            rect[n * 4 + 1] = r.y;
+            rect[n * 4 + 2] = r.width;
+            rect[n * 4 + 3] = r.height;
+            List<UIAElement> children = e.children();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+                parents.push(n);
+            }
+            n++;
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            end[i] = Math.max(end[i], i + 1);
+            if (parent[i] >= 0 && end[parent[i]] < end[i]) {
+                end[parent[i]] = end[i];
+            }
+        }
+        this.names = nameList.toArray(new String[0]);
+    }
+
+    /**
+     * Copies the element tree of a window. The window's own element index is not built.
+     *
+     * @param window window
+     *
+     * @return compact tree
+     */
+    public static UIACompactTree of(UIAWindow window) {
+        return new UIACompactTree(window, count(window));
+    }
+
+    /**
+     * Gets the number of elements, window included.
+     *
+     * @return number of elements
+     */
+    public int size() {
+        return parent.length;
+    }
+
+    /**
+     * Gets the parent of an element.
+     *
+     * @param element element number
+     *
+     * @return element number of parent, or -1 for window
+     */
+    public int parent(int element) {
+        return parent[element];
+    }
+
+    public UIAElementType type(int element) {
+        return UIAElementType.get(type[element]);
+    }
+
+    public String name(int element) {
+        return names[name[element]];
+    }
+
+    public int index(int element) {
+        return index[element];
+    }
+
+    public Rectangle2D.Float rect(int element) {
+        int i = element * 4;
+        return new Rectangle2D.Float(rect[i], rect[i + 1], rect[i + 2], rect[i + 3]);
+    }
+
+    /**
+     * Finds the first element of a type and name, without materialising elements.
+     *
+     * @param elementType type of element, subtypes not included
+     * @param elementName name of element, or null for any name
+     *
+     * @return element number, or -1 if not found
+     */
+    public int find(Class<? extends UIAElement> elementType, String elementName) {
+        UIAElementType et = UIAElementType.of(elementType);
+        if (et.getType() != elementType) {
+            return -1;
+        }
+        int t = et.ordinal();
+        int n = elementName == null ? -1 : indexOf(names, elementName);
+        if (elementName != null && n < 0) {
+            return -1;
+        }
+        for (int i = 0; i < type.length; i++) {
+            if (type[i] == t && (n < 0 || name[i] == n)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Materialises the whole window.
+     *
+     * @return window, without Instruments
+     */
+    public UIAWindow toWindow() {
+        return (UIAWindow) build(0);
+    }
+
+    /**
+     * Materialises an element and its subtree. Each ancestor of the element only has the element on the path, and
+     * keeps its index, so that {@link UIAElement#toJavaScript()} still resolves from window root.
+     *
+     * @param element element number
+     *
+     * @return element, whose {@link UIAElement#window()} has the path to it
+     */
+    public UIAElement element(int element) {
+        UIAElement target = build(element);
+        UIAElement e = target;
+        for (int p = parent[element], c = element; p >= 0; c = p, p = parent[p]) {
+            UIAElement pe = newElement(p);
+            pe.addElement(e);
+            e.setIndex(index[c]);
+            e = pe;
+        }
+        return target;
+    }
+
+    private UIAElement build(int root) {
+        UIAElement top = newElement(root);
+        Deque<UIAElement> open = new ArrayDeque<>();
+        Deque<Integer> ids = new ArrayDeque<>();
+        open.push(top);
+        ids.push(root);
+        for (int i = root + 1; i < end[root]; i++) {
+            while (ids.peek() != parent[i]) {
+                open.pop();
+                ids.pop();
+            }
+            UIAElement e = newElement(i);
+            open.peek().addElement(e);
+            e.setIndex(index[i]);
+            open.push(e);
+            ids.push(i);
+        }
+        return top;
+    }
+
+    private UIAElement newElement(int i) {
+        UIAElement e = type(i).newElement();
+        e.setName(name(i));
+        e.setRect(rect(i));
+        e.setIndex(index[i]);
+        return e;
+    }
+
+    private static int count(UIAElement root) {
+        int n = 0;
+        Deque<UIAElement> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            n++;
+            stack.pop().children().forEach(stack::push);
+        }
+        return n;
+    }
+
+    private static int id(String s, Map<String, Integer> ids, List<String> list) {
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = list.size();
+            ids.put(s, id);
+            list.add(s);
+        }
+        return id;
+    }
+
+    private static int indexOf(String[] array, String s) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
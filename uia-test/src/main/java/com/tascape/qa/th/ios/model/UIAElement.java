@@ -16,11 +16,15 @@
 package com.tascape.qa.th.ios.model;
 
 import com.tascape.qa.th.ios.comm.Instruments;
+import com.tascape.qa.th.ios.comm.JavaScriptRuntime;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.RandomAccess;
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -31,20 +35,36 @@ import org.json.JSONObject;
  */
 public class UIAElement {
 
+    /*
+     * Types a child element is grouped by: its own class and its superclasses below UIAElement.
+     */
+    private static final ClassValue<Class<?>[]> SUPERTYPES = new ClassValue<Class<?>[]>() {
+        @Override
+        protected Class<?>[] computeValue(Class<?> type) {
+            List<Class<?>> types = new ArrayList<>();
+            for (Class<?> t = type; t != null && t != UIAElement.class; t = t.getSuperclass()) {
+                types.add(t);
+            }
+            return types.toArray(new Class<?>[0]);
+        }
+    };
+
     private int index = 0;
 
     private String name;
 
     private Rectangle2D.Float rect;
 
-    private Point2D.Float center;
-
     private final List<UIAElement> elements = new ArrayList<>();
 
+    private Bucket buckets;
+
     private UIAElement parent;
 
     private Instruments instruments;
 
+    private UIAElementState state;
+
     public int index() {
         return index;
     }
@@ -53,6 +73,16 @@ public class UIAElement {
         return name;
     }
 
+    /**
+     * Gets the state of this element taken together with the element tree, which is only available if the tree is
+     * loaded as a compact dump, see {@link CompactElementTree}. Use {@link #snapshot()} for current state.
+     *
+     * @return state at the time of element tree, or null
+     */
+    public UIAElementState state() {
+        return state;
+    }
+
     public Point2D.Float hitpoint() {
         throw new UnsupportedOperationException("Not implemented yet");
     }
@@ -62,21 +92,19 @@ public class UIAElement {
     }
 
     public UIAButton[] buttons() {
-        return elements.stream().filter(e -> e instanceof UIAButton).map(e -> (UIAButton) e)
-            .collect(Collectors.toList()).toArray(new UIAButton[0]);
+        return elements(UIAButton.class).toArray(new UIAButton[0]);
     }
 
     public UIAButton button(int index) {
-        return buttons()[index];
+        return element(UIAButton.class, index);
     }
 
     public UIACollectionView[] collectionViews() {
-        return elements.stream().filter(e -> e instanceof UIACollectionView).map(e -> (UIACollectionView) e)
-            .collect(Collectors.toList()).toArray(new UIACollectionView[0]);
+        return elements(UIACollectionView.class).toArray(new UIACollectionView[0]);
     }
 
     public UIACollectionView collectionView(int index) {
-        return collectionViews()[index];
+        return element(UIACollectionView.class, index);
     }
 
     public UIAElement[] elements() {
@@ -84,25 +112,64 @@ public class UIAElement {
     }
 
     public UIAElement element(int index) {
-        return elements()[index];
+        return element(UIAElement.class, index);
+    }
+
+    /**
+     * Gets child elements of a type, such as all UIAScrollView, table views and collection views included. Children
+     * are grouped by type as they are added, so this is a read-only view, not a copy.
+     *
+     * @param <T>  type of element
+     * @param type type of element, subtypes included
+     *
+     * @return read-only list of child elements, in index order
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends UIAElement> List<T> elements(Class<T> type) {
+        if (type == UIAElement.class) {
+            return (List<T>) Collections.unmodifiableList(elements);
+        }
+        for (Bucket b = buckets; b != null; b = b.next) {
+            if (b.type == type) {
+                return (List<T>) b;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets a child element of a type, such as the same as button(index) for UIAButton.
+     *
+     * @param <T>   type of element
+     * @param type  type of element, subtypes included
+     * @param index index among child elements of the type
+     *
+     * @return child element
+     *
+     * @throws ArrayIndexOutOfBoundsException if there is no such child element
+     */
+    public <T extends UIAElement> T element(Class<T> type, int index) {
+        List<T> list = elements(type);
+        if (index < 0 || index >= list.size()) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return list.get(index);
     }
 
     public UIAImage[] images() {
-        return elements.stream().filter(e -> e instanceof UIAImage).map(e -> (UIAImage) e)
-            .collect(Collectors.toList()).toArray(new UIAImage[0]);
+        return elements(UIAImage.class).toArray(new UIAImage[0]);
     }
 
     public UIAImage image(int index) {
-        return images()[index];
+        return element(UIAImage.class, index);
     }
 
     public UIALink[] links() {
-        return elements.stream().filter(e -> e instanceof UIALink).map(e -> (UIALink) e)
-            .collect(Collectors.toList()).toArray(new UIALink[0]);
+        return elements(UIALink.class).toArray(new UIALink[0]);
     }
 
     public UIALink link(int index) {
-        return links()[index];
+        return element(UIALink.class, index);
     }
 
     /**
@@ -115,30 +182,49 @@ public class UIAElement {
     }
 
     public UIANavigationBar[] navigationBars() {
-        return elements.stream().filter(e -> e instanceof UIANavigationBar).map(e -> (UIANavigationBar) e)
-            .collect(Collectors.toList()).toArray(new UIANavigationBar[0]);
+        return elements(UIANavigationBar.class).toArray(new UIANavigationBar[0]);
     }
 
     public UIAPageIndicator[] pageIndicators() {
-        return elements.stream().filter(e -> e instanceof UIAPageIndicator).map(e -> (UIAPageIndicator) e)
-            .collect(Collectors.toList()).toArray(new UIAPageIndicator[0]);
+        return elements(UIAPageIndicator.class).toArray(new UIAPageIndicator[0]);
     }
 
     public UIAPageIndicator pageIndicator(int index) {
-        return pageIndicators()[index];
+        return element(UIAPageIndicator.class, index);
     }
 
     public UIAElement parent() {
         return parent;
     }
 
+    /**
+     * Gets the registered type of this element.
+     *
+     * @return element type
+     */
+    public UIAElementType type() {
+        return UIAElementType.of(getClass());
+    }
+
+    /**
+     * Gets the window of this element.
+     *
+     * @return window, or null if this element is not in a window
+     */
+    public UIAWindow window() {
+        UIAElement element = this;
+        while (element != null && !(element instanceof UIAWindow)) {
+            element = element.parent();
+        }
+        return (UIAWindow) element;
+    }
+
     public UIAPicker[] pickers() {
-        return elements.stream().filter(e -> e instanceof UIAPicker).map(e -> (UIAPicker) e)
-            .collect(Collectors.toList()).toArray(new UIAPicker[0]);
+        return elements(UIAPicker.class).toArray(new UIAPicker[0]);
     }
 
     public UIAPicker picker(int index) {
-        return pickers()[index];
+        return element(UIAPicker.class, index);
     }
 
     /**
@@ -151,75 +237,67 @@ public class UIAElement {
     }
 
     public UIAProgressIndicator[] progressIndicators() {
-        return elements.stream().filter(e -> e instanceof UIAProgressIndicator).map(e -> (UIAProgressIndicator) e)
-            .collect(Collectors.toList()).toArray(new UIAProgressIndicator[0]);
+        return elements(UIAProgressIndicator.class).toArray(new UIAProgressIndicator[0]);
     }
 
     public UIAProgressIndicator progressIndicator(int index) {
-        return progressIndicators()[index];
+        return element(UIAProgressIndicator.class, index);
     }
 
     public UIAScrollView[] scrollViews() {
-        return elements.stream().filter(e -> e instanceof UIAScrollView).map(e -> (UIAScrollView) e)
-            .collect(Collectors.toList()).toArray(new UIAScrollView[0]);
+        return elements(UIAScrollView.class).toArray(new UIAScrollView[0]);
     }
 
     public UIAScrollView scrollView(int index) {
-        return scrollViews()[index];
+        return element(UIAScrollView.class, index);
     }
 
     public UIASearchBar[] searchBars() {
-        return elements.stream().filter(e -> e instanceof UIASearchBar).map(e -> (UIASearchBar) e)
-            .collect(Collectors.toList()).toArray(new UIASearchBar[0]);
+        return elements(UIASearchBar.class).toArray(new UIASearchBar[0]);
     }
 
     public UIASearchBar searchBar(int index) {
-        return searchBars()[index];
+        return element(UIASearchBar.class, index);
     }
 
     public UIASecureTextField[] secureTextFields() {
-        return elements.stream().filter(e -> e instanceof UIASecureTextField).map(e -> (UIASecureTextField) e)
-            .collect(Collectors.toList()).toArray(new UIASecureTextField[0]);
+        return elements(UIASecureTextField.class).toArray(new UIASecureTextField[0]);
     }
 
     public UIASecureTextField secureTextField(int index) {
-        return secureTextFields()[index];
+        return element(UIASecureTextField.class, index);
     }
 
     public UIASegmentedControl[] segmentedControls() {
-        return elements.stream().filter(e -> e instanceof UIASegmentedControl).map(e -> (UIASegmentedControl) e)
-            .collect(Collectors.toList()).toArray(new UIASegmentedControl[0]);
+        return elements(UIASegmentedControl.class).toArray(new UIASegmentedControl[0]);
     }
 
     public UIASegmentedControl segmentedControl(int index) {
-        return segmentedControls()[index];
+        return element(UIASegmentedControl.class, index);
     }
 
     public UIASlider[] sliders() {
-        return elements.stream().filter(e -> e instanceof UIASlider).map(e -> (UIASlider) e)
-            .collect(Collectors.toList()).toArray(new UIASlider[0]);
+        return elements(UIASlider.class).toArray(new UIASlider[0]);
     }
 
     public UIASlider slider(int index) {
-        return sliders()[index];
+        return element(UIASlider.class, index);
     }
 
     public UIAStaticText[] staticTexts() {
-        return elements.stream().filter(e -> e instanceof UIAStaticText).map(e -> (UIAStaticText) e)
-            .collect(Collectors.toList()).toArray(new UIAStaticText[0]);
+        return elements(UIAStaticText.class).toArray(new UIAStaticText[0]);
     }
 
     public UIAStaticText staticText(int index) {
-        return staticTexts()[index];
+        return element(UIAStaticText.class, index);
     }
 
     public UIASwitch[] switches() {
-        return elements.stream().filter(e -> e instanceof UIASwitch).map(e -> (UIASwitch) e)
-            .collect(Collectors.toList()).toArray(new UIASwitch[0]);
+        return elements(UIASwitch.class).toArray(new UIASwitch[0]);
     }
 
     public UIASwitch switches(int index) {
-        return switches()[index];
+        return element(UIASwitch.class, index);
     }
 
     /**
@@ -232,44 +310,39 @@ public class UIAElement {
     }
 
     public UIATabBar[] tabBars() {
-        return elements.stream().filter(e -> e instanceof UIATabBar).map(e -> (UIATabBar) e)
-            .collect(Collectors.toList()).toArray(new UIATabBar[0]);
+        return elements(UIATabBar.class).toArray(new UIATabBar[0]);
     }
 
     public UIATableView[] tableViews() {
-        return elements.stream().filter(e -> e instanceof UIATableView).map(e -> (UIATableView) e)
-            .collect(Collectors.toList()).toArray(new UIATableView[0]);
+        return elements(UIATableView.class).toArray(new UIATableView[0]);
     }
 
     public UIATableView tableView(int index) {
-        return tableViews()[index];
+        return element(UIATableView.class, index);
     }
 
     public UIATableCell[] cells() {
-        return elements.stream().filter(e -> e instanceof UIATableCell).map(e -> (UIATableCell) e)
-            .collect(Collectors.toList()).toArray(new UIATableCell[0]);
+        return elements(UIATableCell.class).toArray(new UIATableCell[0]);
     }
 
     public UIATableCell cell(int index) {
-        return cells()[index];
+        return element(UIATableCell.class, index);
     }
 
     public UIATextField[] textFields() {
-        return elements.stream().filter(e -> e instanceof UIATextField).map(e -> (UIATextField) e)
-            .collect(Collectors.toList()).toArray(new UIATextField[0]);
+        return elements(UIATextField.class).toArray(new UIATextField[0]);
     }
 
     public UIATextField textField(int index) {
-        return textFields()[index];
+        return element(UIATextField.class, index);
     }
 
     public UIATextView[] textViews() {
-        return elements.stream().filter(e -> e instanceof UIATextView).map(e -> (UIATextView) e)
-            .collect(Collectors.toList()).toArray(new UIATextView[0]);
+        return elements(UIATextView.class).toArray(new UIATextView[0]);
     }
 
     public UIATextView textView(int index) {
-        return textViews()[index];
+        return element(UIATextView.class, index);
     }
 
     /**
@@ -282,38 +355,35 @@ public class UIAElement {
     }
 
     public UIAToolbar[] toolbars() {
-        return elements.stream().filter(e -> e instanceof UIAToolbar).map(e -> (UIAToolbar) e)
-            .collect(Collectors.toList()).toArray(new UIAToolbar[0]);
+        return elements(UIAToolbar.class).toArray(new UIAToolbar[0]);
     }
 
     public UIAWebView[] webViews() {
-        return elements.stream().filter(e -> e instanceof UIAWebView).map(e -> (UIAWebView) e)
-            .collect(Collectors.toList()).toArray(new UIAWebView[0]);
+        return elements(UIAWebView.class).toArray(new UIAWebView[0]);
     }
 
     public UIAWebView webView(int index) {
-        return webViews()[index];
+        return element(UIAWebView.class, index);
     }
 
     public void doubleTap() {
-        instruments.runJavaScript(toJavaScript() + ".doubleTap();");
+        getInstruments().runJavaScript(invoke("doubleTap") + ";");
     }
 
     public void scrollToVisible() {
-        instruments.runJavaScript(toJavaScript() + ".scrollToVisible();");
+        getInstruments().runJavaScript(invoke("scrollToVisible") + ";");
     }
 
     public void touchAndHold(int duration) {
-        instruments.runJavaScript(toJavaScript() + ".touchAndHold(" + duration + ");");
+        getInstruments().runJavaScript(invoke("touchAndHold", duration) + ";");
     }
 
     public void twoFingerTap() {
-        instruments.runJavaScript(toJavaScript() + ".twoFingerTap();");
+        getInstruments().runJavaScript(invoke("twoFingerTap") + ";");
     }
 
     public boolean checkIsValid() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.checkIsValid() + '');"));
+        String v = query("checkIsValid");
         if (null != v) {
             switch (v) {
                 case "true":
@@ -326,8 +396,7 @@ public class UIAElement {
     }
 
     public int hasKeyboardFocus() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.hasKeyboardFocus() + '');"));
+        String v = query("hasKeyboardFocus");
         if (null != v) {
             switch (v) {
                 case "1":
@@ -340,8 +409,7 @@ public class UIAElement {
     }
 
     public int isEnabled() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.isEnabled() + '');"));
+        String v = query("isEnabled");
         if (null != v) {
             switch (v) {
                 case "1":
@@ -354,8 +422,7 @@ public class UIAElement {
     }
 
     public boolean isValid() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.isValid() + '');"));
+        String v = query("isValid");
         if (null != v) {
             switch (v) {
                 case "true":
@@ -368,8 +435,7 @@ public class UIAElement {
     }
 
     public int isVisible() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.isVisible() + '');"));
+        String v = query("isVisible");
         if (null != v) {
             switch (v) {
                 case "1":
@@ -382,8 +448,7 @@ public class UIAElement {
     }
 
     public boolean waitForInvalid() {
-        String v = Instruments.getLogMessage(instruments.runJavaScript("var e = " + toJavaScript()
-            + "; UIALogger.logMessage(e.waitForInvalid() + '');"));
+        String v = getInstruments().evaluate(invoke("waitForInvalid"));
         if (null != v) {
             switch (v) {
                 case "true":
@@ -396,13 +461,21 @@ public class UIAElement {
     }
 
     public String label() {
-        String js = "var e = " + toJavaScript() + "; UIALogger.logMessage(e.label());";
-        return Instruments.getLogMessage(instruments.runJavaScript(js));
+        return query("label");
     }
 
     public String value() {
-        String js = "var e = " + toJavaScript() + "; UIALogger.logMessage(e.value());";
-        return Instruments.getLogMessage(instruments.runJavaScript(js));
+        return query("value");
+    }
+
+    /**
+     * Gets validity, label, value, visibility, enabled and keyboard focus of this element in one round trip to device.
+     * See {@link UIAWindow#snapshot(java.util.Collection)} for many elements at once.
+     *
+     * @return state of this element
+     */
+    public UIAElementState snapshot() {
+        return UIAElementState.load(getInstruments(), Collections.singletonList(this)).get(0);
     }
 
     public UIAElement withName(String name) {
@@ -410,12 +483,12 @@ public class UIAElement {
     }
 
     public void tap() {
-        instruments.runJavaScript(toJavaScript() + ".tap();");
+        getInstruments().runJavaScript(invoke("tap") + ";");
     }
 
     public void tap(int times) {
-        String js = toJavaScript() + ".tap();";
-        instruments.runJavaScript(StringUtils.repeat(js, times));
+        String js = invoke("tap") + ";";
+        getInstruments().runJavaScript(StringUtils.repeat(js, times));
     }
 
     /**
@@ -424,7 +497,8 @@ public class UIAElement {
      * @throws UIAException in case of Instruments error
      */
     public void tapOn() {
-        instruments.runJavaScript("target.tap({x:" + center.x + ", y:" + center.y + "});");
+        Point2D.Float center = center();
+        getInstruments().runJavaScript("target.tap({x:" + center.x + ", y:" + center.y + "});");
     }
 
     public void drag(float x, float y) {
@@ -432,8 +506,9 @@ public class UIAElement {
     }
 
     public void drag(float x, float y, int duration) {
+        Point2D.Float center = center();
         Point2D.Float end = new Point2D.Float(center.x + x, center.y + y);
-        instruments.runJavaScript("target.dragFromToForDuration(" + toCGString(center) + ", " + toCGString(end)
+        getInstruments().runJavaScript("target.dragFromToForDuration(" + toCGString(center) + ", " + toCGString(end)
             + ", " + duration + ");");
     }
 
@@ -455,8 +530,34 @@ public class UIAElement {
         return StringUtils.join(list, ".");
     }
 
+    /**
+     * Gets the address of this element in the on-device helper runtime, such as "0,[3,0]" for
+     * "window.elements()[3].elements()[0]".
+     *
+     * @return runtime address
+     */
+    public String toRuntimeAddress() {
+        List<Integer> path = new ArrayList<>();
+        UIAElement element = this;
+        while (!(element instanceof UIAWindow)) {
+            path.add(0, element.index());
+            element = element.parent();
+        }
+        return JavaScriptRuntime.address(element.index(), path.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Gets the short JavaScript expression that resolves this element with the on-device helper runtime, which is
+     * the same element as {@link #toJavaScript()}.
+     *
+     * @return JavaScript expression, such as "thx.e(0,[3,0])"
+     */
+    public String toRuntimeJavaScript() {
+        return JavaScriptRuntime.element(toRuntimeAddress());
+    }
+
     public JSONObject toJson() {
-        JSONObject json = new JSONObject().put(this.getClass().getSimpleName(), new JSONObject()
+        JSONObject json = new JSONObject().put(type().getName(), new JSONObject()
             .put("index", index)
             .put("name", name)
             .put("x", rect.x)
@@ -475,7 +576,7 @@ public class UIAElement {
 
     public List<String> logElement() {
         List<String> lines = new ArrayList<>();
-        lines.add(String.format("%s %d \"%s\" [x=%s,y=%s,w=%s,h=%s]", getClass().getSimpleName(), index, name,
+        lines.add(String.format("%s %d \"%s\" [x=%s,y=%s,w=%s,h=%s]", type().getName(), index, name,
             rect.x, rect.y, rect.width, rect.height));
         if (!elements.isEmpty()) {
             lines.add("elements: (" + elements.size() + ") {");
@@ -494,13 +595,33 @@ public class UIAElement {
         return StringUtils.join(logElement(), "\n");
     }
 
+    /**
+     * Gets the JavaScript expression that calls a method of this element with the on-device helper runtime.
+     */
+    String invoke(String method, Object... args) {
+        return JavaScriptRuntime.invoke(toRuntimeAddress(), method, args);
+    }
+
+    /*
+     * Evaluates a getter of this element as idempotent, so that it does not invalidate element trees read from device.
+     */
+    private String query(String method) {
+        return getInstruments().evaluate(invoke(method), Instruments.JAVASCRIPT_TIMEOUT_SECOND * 1000L, true);
+    }
+
+    /*
+     * Elements share the Instruments of their window, so it is not copied to every element of a parsed tree.
+     */
     Instruments getInstruments() {
-        return instruments;
+        UIAElement element = this;
+        while (element.instruments == null && element.parent != null) {
+            element = element.parent;
+        }
+        return element.instruments;
     }
 
     void setInstruments(Instruments instruments) {
         this.instruments = instruments;
-        this.elements.forEach((UIAElement e) -> e.setInstruments(instruments));
     }
 
     <T extends UIAElement> T findElement(Class<T> type, String name) {
@@ -533,26 +654,87 @@ public class UIAElement {
         this.index = index;
     }
 
+    List<UIAElement> children() {
+        return elements;
+    }
+
     void setName(String name) {
         this.name = name;
     }
 
     void setRect(Rectangle2D.Float rect) {
         this.rect = rect;
-        this.center = new Point2D.Float(rect.x + rect.width / 2, rect.y + rect.height / 2);
     }
 
     void addElement(UIAElement element) {
         element.setIndex(elements.size());
         element.setParent(this);
         elements.add(element);
+        for (Class<?> type : SUPERTYPES.get(element.getClass())) {
+            Bucket b = buckets;
+            while (b != null && b.type != type) {
+                b = b.next;
+            }
+            if (b == null) {
+                b = new Bucket(type, buckets);
+                buckets = b;
+            }
+            b.append(element);
+        }
+    }
+
+    void setState(UIAElementState state) {
+        this.state = state;
     }
 
     void setParent(UIAElement parent) {
         this.parent = parent;
     }
 
+    Point2D.Float center() {
+        return new Point2D.Float(rect.x + rect.width / 2, rect.y + rect.height / 2);
+    }
+
     String toCGString(Point2D.Float point) {
         return String.format("{x:%f, y:%f}", point.x, point.y);
     }
+
+    /*
+     * Child elements of one type, as a read-only list, linked to the bucket of another type. A parent has only a few
+     * types of children, so a linked list is smaller and no slower than a map.
+     */
+    private static class Bucket extends AbstractList<UIAElement> implements RandomAccess {
+        private final Class<?> type;
+
+        private final Bucket next;
+
+        private UIAElement[] items = new UIAElement[2];
+
+        private int size;
+
+        Bucket(Class<?> type, Bucket next) {
+            this.type = type;
+            this.next = next;
+        }
+
+        void append(UIAElement element) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = element;
+        }
+
+        @Override
+        public UIAElement get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return items[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
 }
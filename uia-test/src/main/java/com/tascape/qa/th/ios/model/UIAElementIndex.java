@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of all elements of a window, by type and by type and name, in the same depth-first order as the recursive
+ * finders of {@link UIAElement}, window included. Lookups by exact type are a map get; lookups that include subtypes
+ * merge the lists of matching types once, and are then cached.
+ *
+ * @author linsong wang
+ */
+final class UIAElementIndex {
+
+    private final Map<Class<? extends UIAElement>, List<UIAElement>> byType = new HashMap<>();
+
+    private final Map<Class<? extends UIAElement>, Map<String, List<UIAElement>>> byName = new HashMap<>();
+
+    private final Map<UIAElement, Integer> order = new IdentityHashMap<>();
+
+    private final Map<Class<?>, List<UIAElement>> instances = new ConcurrentHashMap<>();
+
+    UIAElementIndex(UIAElement root) {
+        Deque<UIAElement> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            UIAElement e = stack.pop();
+            order.put(e, order.size());
+            byType.computeIfAbsent(e.getClass(), c -> new ArrayList<>()).add(e);
+            byName.computeIfAbsent(e.getClass(), c -> new HashMap<>())
+                .computeIfAbsent(e.name(), n -> new ArrayList<>(1)).add(e);
+            List<UIAElement> children = e.children();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
+        }
+    }
+
+    /**
+     * Gets elements of exactly a type.
+     *
+     * @param type type of element
+     * @param name name of element, or null for any name
+     *
+     * @return read-only list, in depth-first order
+     */
+    List<UIAElement> get(Class<? extends UIAElement> type, String name) {
+        if (name == null) {
+            List<UIAElement> list = byType.get(type);
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+        }
+        Map<String, List<UIAElement>> names = byName.get(type);
+        List<UIAElement> list = names == null ? null : names.get(name);
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Gets elements of a type or any of its subtypes.
+     *
+     * @param type type of element
+     *
+     * @return read-only list, in depth-first order
+     */
+    List<UIAElement> getInstances(Class<? extends UIAElement> type) {
+        return instances.computeIfAbsent(type, t -> {
+            List<List<UIAElement>> lists = new ArrayList<>();
+            byType.forEach((c, list) -> {
+                if (t.isAssignableFrom(c)) {
+                    lists.add(list);
+                }
+            });
+            if (lists.size() == 1) {
+                return Collections.unmodifiableList(lists.get(0));
+            }
+            List<UIAElement> merged = new ArrayList<>();
+            lists.forEach(merged::addAll);
+            merged.sort((a, b) -> Integer.compare(order.get(a), order.get(b)));
+            return Collections.unmodifiableList(merged);
+        });
+    }
+
+    int size() {
+        return order.size();
+    }
+}
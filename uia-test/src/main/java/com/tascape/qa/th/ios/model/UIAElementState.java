@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import com.tascape.qa.th.ios.comm.Instruments;
+import com.tascape.qa.th.ios.comm.JavaScriptRuntime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Immutable state of a UI element, taken in one evaluation on device, see {@link UIAElement#snapshot()} and
+ * {@link UIAWindow#snapshot(java.util.Collection)}. All properties of an invalid element are empty.
+ *
+ * @author linsong wang
+ */
+public final class UIAElementState {
+
+    private final boolean valid;
+
+    private final String label;
+
+    private final String value;
+
+    private final boolean visible;
+
+    private final boolean enabled;
+
+    private final boolean keyboardFocus;
+
+    private final long timestamp = System.currentTimeMillis();
+
+    UIAElementState(boolean valid, String label, String value, boolean visible, boolean enabled,
+        boolean keyboardFocus) {
+        this.valid = valid;
+        this.label = label;
+        this.value = value;
+        this.visible = visible;
+        this.enabled = enabled;
+        this.keyboardFocus = keyboardFocus;
+    }
+
+    private UIAElementState(JSONObject json) {
+        this.valid = json.optBoolean("valid");
+        this.label = json.isNull("label") ? null : json.optString("label");
+        this.value = json.isNull("value") ? null : json.optString("value");
+        this.visible = json.optBoolean("visible");
+        this.enabled = json.optBoolean("enabled");
+        this.keyboardFocus = json.optBoolean("focus");
+    }
+
+    /**
+     * Takes states of elements in one evaluation on device, with thx.s() of the helper runtime. Each element is
+     * checked with checkIsValid() first, and other properties are read only if it is valid.
+     *
+     * @param instruments instruments of the elements
+     * @param elements    elements
+     *
+     * @return states, in the same order as the elements
+     */
+    static List<UIAElementState> load(Instruments instruments, List<? extends UIAElement> elements) {
+        List<UIAElementState> states = new ArrayList<>();
+        if (elements.isEmpty()) {
+            return states;
+        }
+        List<String> addresses = elements.stream().map(UIAElement::toRuntimeAddress).collect(Collectors.toList());
+        String v = instruments.evaluate(JavaScriptRuntime.states(addresses), Instruments.JAVASCRIPT_TIMEOUT_SECOND
+            * 1000L, true);
+        JSONArray jarr = new JSONArray(v);
+        if (jarr.length() != elements.size()) {
+            throw new UIAException("Expect " + elements.size() + " element states, got " + jarr.length());
+        }
+        for (int i = 0; i < jarr.length(); i++) {
+            states.add(new UIAElementState(jarr.getJSONObject(i)));
+        }
+        return states;
+    }
+
+    /**
+     * Same as checkIsValid() of element.
+     *
+     * @return true if element exists on current UI
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean hasKeyboardFocus() {
+        return keyboardFocus;
+    }
+
+    /**
+     * Gets the time when the state is taken.
+     *
+     * @return time in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public JSONObject toJson() {
+        return new JSONObject()
+            .put("valid", valid)
+            .put("label", label == null ? JSONObject.NULL : label)
+            .put("value", value == null ? JSONObject.NULL : value)
+            .put("visible", visible)
+            .put("enabled", enabled)
+            .put("focus", keyboardFocus);
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
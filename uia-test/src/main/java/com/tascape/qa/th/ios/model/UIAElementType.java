@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of element types: type name as in element tree, such as "UIAButton", element class, and JavaScript
+ * accessor of elements of the type on a parent, such as "buttons". Each type has an ordinal, in the order of
+ * registration, which is stable within a JVM. All UIAutomation types of this package are registered; new types can
+ * be added with {@link #register(String, Class, Supplier, String)}.
+ * <p>
+ * Each type counts the elements parsed from element trees read from device, in text or compact form; elements
+ * materialised from {@link UIACompactTree} are not counted again. Unknown type names are created as UIAElement, with
+ * one warning per name, and are counted separately.
+ *
+ * @author linsong wang
+ */
+public final class UIAElementType {
+    private static final Logger LOG = LoggerFactory.getLogger(UIAElementType.class);
+
+    private static final Map<String, UIAElementType> BY_NAME = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, UIAElementType> BY_CLASS = new ConcurrentHashMap<>();
+
+    private static final Map<String, LongAdder> UNKNOWN = new ConcurrentHashMap<>();
+
+    private static volatile UIAElementType[] types = new UIAElementType[0];
+
+    public static final UIAElementType ELEMENT = register("UIAElement", UIAElement.class, UIAElement::new,
+        "elements");
+
+    static {
+        register("UIAActionSheet", UIAActionSheet.class, UIAActionSheet::new, null);
+        register("UIAActivityIndicator", UIAActivityIndicator.class, UIAActivityIndicator::new,
+            "activityIndicators");
+        register("UIAActivityView", UIAActivityView.class, UIAActivityView::new, null);
+        register("UIAAlert", UIAAlert.class, UIAAlert::new, null);
+        register("UIAButton", UIAButton.class, UIAButton::new, "buttons");
+        register("UIACollectionCell", UIACollectionCell.class, UIACollectionCell::new, "cells");
+        register("UIACollectionView", UIACollectionView.class, UIACollectionView::new, "collectionViews");
+        register("UIAEditingMenu", UIAEditingMenu.class, UIAEditingMenu::new, null);
+        register("UIAElementNil", UIAElementNil.class, UIAElementNil::new, null);
+        register("UIAImage", UIAImage.class, UIAImage::new, "images");
+        register("UIAKey", UIAKey.class, UIAKey::new, "keys");
+        register("UIAKeyboard", UIAKeyboard.class, UIAKeyboard::new, null);
+        register("UIALink", UIALink.class, UIALink::new, "links");
+        register("UIANavigationBar", UIANavigationBar.class, UIANavigationBar::new, "navigationBars");
+        register("UIAPageIndicator", UIAPageIndicator.class, UIAPageIndicator::new, "pageIndicators");
+        register("UIAPicker", UIAPicker.class, UIAPicker::new, "pickers");
+        register("UIAPickerWheel", UIAPickerWheel.class, UIAPickerWheel::new, "wheels");
+        register("UIAPopover", UIAPopover.class, UIAPopover::new, null);
+        register("UIAProgressIndicator", UIAProgressIndicator.class, UIAProgressIndicator::new,
+            "progressIndicators");
+        register("UIAScrollView", UIAScrollView.class, UIAScrollView::new, "scrollViews");
+        register("UIASearchBar", UIASearchBar.class, UIASearchBar::new, "searchBars");
+        register("UIASecureTextField", UIASecureTextField.class, UIASecureTextField::new, "secureTextFields");
+        register("UIASegmentedControl", UIASegmentedControl.class, UIASegmentedControl::new, "segmentedControls");
+        register("UIASlider", UIASlider.class, UIASlider::new, "sliders");
+        register("UIAStaticText", UIAStaticText.class, UIAStaticText::new, "staticTexts");
+        register("UIAStatusBar", UIAStatusBar.class, UIAStatusBar::new, null);
+        register("UIASwitch", UIASwitch.class, UIASwitch::new, "switches");
+        register("UIATabBar", UIATabBar.class, UIATabBar::new, "tabBars");
+        register("UIATableCell", UIATableCell.class, UIATableCell::new, "cells");
+        register("UIATableGroup", UIATableGroup.class, UIATableGroup::new, "groups");
+        register("UIATableView", UIATableView.class, UIATableView::new, "tableViews");
+        register("UIATextField", UIATextField.class, UIATextField::new, "textFields");
+        register("UIATextView", UIATextView.class, UIATextView::new, "textViews");
+        register("UIAToolbar", UIAToolbar.class, UIAToolbar::new, "toolbars");
+        register("UIAWebView", UIAWebView.class, UIAWebView::new, "webViews");
+        register("UIAWindow", UIAWindow.class, UIAWindow::new, "windows");
+    }
+
+    private final int ordinal;
+
+    private final String name;
+
+    private final Class<? extends UIAElement> type;
+
+    private final Supplier<? extends UIAElement> factory;
+
+    private final String accessor;
+
+    private final LongAdder count = new LongAdder();
+
+    private UIAElementType(int ordinal, String name, Class<? extends UIAElement> type,
+        Supplier<? extends UIAElement> factory, String accessor) {
+        this.ordinal = ordinal;
+        this.name = name;
+        this.type = type;
+        this.factory = factory;
+        this.accessor = accessor;
+    }
+
+    /**
+     * Registers an element type, such as a UIAutomation type that is not in this package.
+     *
+     * @param <T>      element class
+     * @param name     type name as in element tree
+     * @param type     element class
+     * @param factory  creates empty elements of the type
+     * @param accessor JavaScript accessor of elements of the type on a parent, such as "buttons", or null
+     *
+     * @return element type
+     *
+     * @throws UIAException if the name or class is already registered
+     */
+    public static synchronized <T extends UIAElement> UIAElementType register(String name, Class<T> type,
+        Supplier<T> factory, String accessor) throws UIAException {
+        if (BY_NAME.containsKey(name) || BY_CLASS.containsKey(type)) {
+            throw new UIAException("Element type " + name + " (" + type.getName() + ") is already registered");
+        }
+        UIAElementType t = new UIAElementType(types.length, name, type, factory, accessor);
+        UIAElementType[] ts = Arrays.copyOf(types, types.length + 1);
+        ts[t.ordinal] = t;
+        types = ts;
+        BY_CLASS.put(type, t);
+        BY_NAME.put(name, t);
+        return t;
+    }
+
+    /**
+     * Gets a type by name.
+     *
+     * @param name type name as in element tree, such as "UIAButton"
+     *
+     * @return element type, or null if unknown
+     */
+    public static UIAElementType forName(String name) {
+        return BY_NAME.get(name);
+    }
+
+    /**
+     * Gets the type of an element class, or of its nearest registered superclass.
+     *
+     * @param type element class
+     *
+     * @return element type
+     */
+    public static UIAElementType of(Class<? extends UIAElement> type) {
+        UIAElementType t = BY_CLASS.get(type);
+        if (t != null) {
+            return t;
+        }
+        for (Class<?> c = type.getSuperclass(); c != null; c = c.getSuperclass()) {
+            t = BY_CLASS.get(c);
+            if (t != null) {
+                return t;
+            }
+        }
+        return ELEMENT;
+    }
+
+    /**
+     * Gets a type by ordinal.
+     *
+     * @param ordinal ordinal
+     *
+     * @return element type
+     *
+     * @throws ArrayIndexOutOfBoundsException if no type has the ordinal
+     */
+    public static UIAElementType get(int ordinal) {
+        return types[ordinal];
+    }
+
+    public static List<UIAElementType> values() {
+        return Collections.unmodifiableList(Arrays.asList(types));
+    }
+
+    /**
+     * Gets the number of elements of unknown types created so far, by type name.
+     *
+     * @return counts, sorted by type name
+     */
+    public static Map<String, Long> getUnknownCounts() {
+        Map<String, Long> map = new TreeMap<>();
+        UNKNOWN.forEach((name, count) -> map.put(name, count.sum()));
+        return map;
+    }
+
+    /*
+     * Creates an element by type name as in element tree.
+     */
+    static UIAElement newElement(String name) {
+        UIAElementType t = BY_NAME.get(name);
+        if (t != null) {
+            t.count.increment();
+            return t.newElement();
+        }
+        UNKNOWN.computeIfAbsent(name, n -> {
+            LOG.warn("Unkown element type {}, use UIAElement", n);
+            return new LongAdder();
+        }).increment();
+        return new UIAElement();
+    }
+
+    /*
+     * Creates an element of this type, without counting it, such as when a compact tree is materialised.
+     */
+    UIAElement newElement() {
+        return factory.get();
+    }
+
+    public int ordinal() {
+        return ordinal;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends UIAElement> getType() {
+        return type;
+    }
+
+    /**
+     * Gets the JavaScript accessor of elements of this type on a parent. It is metadata for callers, such as tools
+     * that show or generate typed selectors; element paths of this package always use elements()[i].
+     *
+     * @return accessor, such as "buttons", or null if there is none
+     */
+    public String getAccessor() {
+        return accessor;
+    }
+
+    /**
+     * Gets the number of elements of this type parsed from element trees read from device so far.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
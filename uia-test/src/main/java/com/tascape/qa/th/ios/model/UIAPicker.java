@@ -15,10 +15,6 @@
  */
 package com.tascape.qa.th.ios.model;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Stream;
-
 /**
  *
  * @author linsong wang
@@ -26,12 +22,10 @@ import java.util.stream.Stream;
 public class UIAPicker extends UIAElement {
 
     public UIAPickerWheel[] wheels() {
-        List<UIAPickerWheel> es = new ArrayList<>();
-        Stream.of(elements())
-            .filter((e) -> (e instanceof UIAPickerWheel))
-            .forEach((e) -> {
-                es.add(UIAPickerWheel.class.cast(e));
-            });
-        return es.toArray(new UIAPickerWheel[0]);
+        return elements(UIAPickerWheel.class).toArray(new UIAPickerWheel[0]);
+    }
+
+    public UIAPickerWheel wheel(int index) {
+        return element(UIAPickerWheel.class, index);
     }
 }
@@ -22,7 +22,6 @@ package com.tascape.qa.th.ios.model;
 public class UIAPickerWheel extends UIAPicker {
 
     public void selectValue(String value) throws UIAException {
-        String js = "var e = " + toJavaScript() + "; e.selectValue('" + value + "');";
-        getInstruments().runJavaScript(js);
+        getInstruments().runJavaScript(invoke("selectValue", value) + ";");
     }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Uniform grid over the rects of all elements of a window, window included, for hit-testing by coordinate. The grid
+ * covers the union of all rects, such as table cells scrolled out of screen, with about two elements per grid cell.
+ * Each element is listed in every grid cell its rect overlaps, except for elements that cover a large part of the
+ * grid, such as the window and full-screen containers, which are kept in a short list that every query checks.
+ * <p>
+ * Query results are z-ordered, topmost first: deeper elements are above their ancestors, and among elements of the
+ * same depth, later ones in depth-first order are above earlier ones.
+ *
+ * @author linsong wang
+ */
+final class UIASpatialIndex {
+
+    private static final int MAX_GRID = 128;
+
+    private final UIAElement[] elements;
+
+    private final int[] depth;
+
+    private final float minX;
+
+    private final float minY;
+
+    private final float maxX;
+
+    private final float maxY;
+
+    private final float cellWidth;
+
+    private final float cellHeight;
+
+    private final int cols;
+
+    private final int rows;
+
+    private final int[] cellStart;
+
+    private final int[] cellItems;
+
+    private final int[] large;
+
+    UIASpatialIndex(UIAWindow window) {
+        List<UIAElement> list = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        Deque<UIAElement> stack = new ArrayDeque<>();
+        Deque<Integer> levels = new ArrayDeque<>();
+        stack.push(window);
+        levels.push(0);
+        float x0 = Float.MAX_VALUE;
+        float y0 = Float.MAX_VALUE;
+        float x1 = -Float.MAX_VALUE;
+        float y1 = -Float.MAX_VALUE;
+        while (!stack.isEmpty()) {
+            UIAElement e = stack.pop();
+            int level = levels.pop();
+            list.add(e);
+            depths.add(level);
+            Rectangle2D.Float r = e.rect();
+            x0 = Math.min(x0, r.x);
+            y0 = Math.min(y0, r.y);
+            x1 = Math.max(x1, r.x + r.width);
+            y1 = Math.max(y1, r.y + r.height);
+            List<UIAElement> children = e.children();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+                levels.push(level + 1);
+            }
+        }
+        int n = list.size();
+        this.elements = list.toArray(new UIAElement[n]);
+        this.depth = new int[n];
+        for (int i = 0; i < n; i++) {
+            depth[i] = depths.get(i);
+        }
+
+        int grid = Math.max(1, Math.min(MAX_GRID, (int) Math.ceil(Math.sqrt(n / 2.0))));
+        this.cols = grid;
+        this.rows = grid;
+        this.minX = x0;
+        this.minY = y0;
+        this.maxX = x1;
+        this.maxY = y1;
+        this.cellWidth = Math.max((x1 - x0) / cols, Float.MIN_NORMAL);
+        this.cellHeight = Math.max((y1 - y0) / rows, Float.MIN_NORMAL);
+
+        int[] counts = new int[cols * rows + 1];
+        List<Integer> big = new ArrayList<>();
+        int limit = Math.max(4, cols * rows / 4);
+        int[][] spans = new int[n][];
+        for (int i = 0; i < n; i++) {
+            int[] span = span(elements[i].rect());
+            if ((span[2] - span[0] + 1) * (span[3] - span[1] + 1) > limit) {
+                big.add(i);
+                continue;
+            }
+            spans[i] = span;
+            for (int r = span[1]; r <= span[3]; r++) {
+                for (int c = span[0]; c <= span[2]; c++) {
+                    counts[r * cols + c + 1]++;
+                }
+            }
+        }
+        for (int i = 1; i < counts.length; i++) {
+            counts[i] += counts[i - 1];
+        }
+        this.cellStart = counts.clone();
+        this.cellItems = new int[counts[counts.length - 1]];
+        for (int i = 0; i < n; i++) {
+            int[] span = spans[i];
+            if (span == null) {
+                continue;
+            }
+            for (int r = span[1]; r <= span[3]; r++) {
+                for (int c = span[0]; c <= span[2]; c++) {
+                    cellItems[counts[r * cols + c]++] = i;
+                }
+            }
+        }
+        this.large = big.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Finds elements whose rect contains a point, with the same edges as
+     * {@link Rectangle2D#contains(double, double)}.
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     *
+     * @return elements, topmost first
+     */
+    List<UIAElement> elementsAt(float x, float y) {
+        List<Integer> found = new ArrayList<>();
+        for (int i : large) {
+            if (elements[i].rect().contains(x, y)) {
+                found.add(i);
+            }
+        }
+        if (x >= minX && y >= minY && x <= maxX && y <= maxY) {
+            int r = clamp((int) (((double) y - minY) / cellHeight), rows);
+            int c = clamp((int) (((double) x - minX) / cellWidth), cols);
+            int cell = r * cols + c;
+            for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                int i = cellItems[k];
+                if (elements[i].rect().contains(x, y)) {
+                    found.add(i);
+                }
+            }
+        }
+        return sort(found);
+    }
+
+    /**
+     * Finds elements whose rect intersects a rect, with the same edges as
+     * {@link Rectangle2D#intersects(double, double, double, double)}.
+     *
+     * @param rect area
+     *
+     * @return elements, topmost first
+     */
+    List<UIAElement> elementsIntersecting(Rectangle2D rect) {
+        List<Integer> found = new ArrayList<>();
+        for (int i : large) {
+            if (elements[i].rect().intersects(rect)) {
+                found.add(i);
+            }
+        }
+        int[] span = span(rect);
+        BitSet seen = new BitSet(elements.length);
+        for (int r = span[1]; r <= span[3]; r++) {
+            for (int c = span[0]; c <= span[2]; c++) {
+                int cell = r * cols + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = cellItems[k];
+                    if (!seen.get(i) && elements[i].rect().intersects(rect)) {
+                        seen.set(i);
+                        found.add(i);
+                    }
+                }
+            }
+        }
+        return sort(found);
+    }
+
+    int size() {
+        return elements.length;
+    }
+
+    /*
+     * Grid cells overlapped by a rect, as {first column, first row, last column, last row}, clamped to the grid.
+     */
+    private int[] span(Rectangle2D rect) {
+        return new int[]{
+            clamp((int) ((rect.getMinX() - minX) / cellWidth), cols),
+            clamp((int) ((rect.getMinY() - minY) / cellHeight), rows),
+            clamp((int) ((rect.getMaxX() - minX) / cellWidth), cols),
+            clamp((int) ((rect.getMaxY() - minY) / cellHeight), rows)};
+    }
+
+    private List<UIAElement> sort(List<Integer> found) {
+        found.sort((a, b) -> depth[a] != depth[b] ? Integer.compare(depth[b], depth[a]) : Integer.compare(b, a));
+        List<UIAElement> list = new ArrayList<>(found.size());
+        found.forEach(i -> list.add(elements[i]));
+        return list;
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : v >= size ? size - 1 : v;
+    }
+}
@@ -22,7 +22,6 @@ package com.tascape.qa.th.ios.model;
 public class UIATextField extends UIAElement {
 
     public void setValue(String value) throws UIAException {
-        String js = "var e = " + toJavaScript() + "; e.setValue('" + value + "');";
-        getInstruments().runJavaScript(js);
+        getInstruments().runJavaScript(invoke("setValue", value) + ";");
     }
 }
@@ -16,16 +16,31 @@
 package com.tascape.qa.th.ios.model;
 
 import com.tascape.qa.th.ios.comm.Instruments;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Window, as a snapshot of its element tree. Finders of elements by type and name are answered from an index of the
+ * tree, and finders of elements by coordinate from a grid of element rects, each built on the first lookup, so
+ * repeated lookups on the same snapshot do not walk the tree again. A window is not changed after it is parsed.
  *
  * @author linsong wang
  */
 public class UIAWindow extends UIAElement {
     private static final Logger LOG = LoggerFactory.getLogger(UIAWindow.class);
 
+    private volatile UIAElementIndex elementIndex;
+
+    private volatile UIASpatialIndex spatialIndex;
+
     @Override
     public void setInstruments(Instruments instruments) {
         super.setInstruments(instruments);
@@ -55,7 +70,88 @@ public class UIAWindow extends UIAElement {
     @Override
     public <T extends UIAElement> T findElement(Class<T> type, String name) {
         LOG.debug("Look for {}{}", type.getSimpleName(), name == null ? "" : "['" + name + "']");
-        return type.cast(super.findElement(type, name));
+        return findFirst(type, name);
+    }
+
+    /**
+     * Finds the first element of a type and name, in the same order as {@link #findElement(Class, String)}.
+     *
+     * @param <T>  type of element
+     * @param type type of element, subtypes not included
+     * @param name name of element, or null for any name
+     *
+     * @return element found, or null
+     */
+    public <T extends UIAElement> T findFirst(Class<T> type, String name) {
+        List<UIAElement> list = elementIndex().get(type, name);
+        return list.isEmpty() ? null : type.cast(list.get(0));
+    }
+
+    /**
+     * Finds all elements of a type.
+     *
+     * @param <T>  type of element
+     * @param type type of element, subtypes not included
+     *
+     * @return read-only list of elements, in depth-first order
+     */
+    public <T extends UIAElement> List<T> findAll(Class<T> type) {
+        return findAll(type, null);
+    }
+
+    /**
+     * Finds all elements of a type and name.
+     *
+     * @param <T>  type of element
+     * @param type type of element, subtypes not included
+     * @param name name of element, or null for any name
+     *
+     * @return read-only list of elements, in depth-first order
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends UIAElement> List<T> findAll(Class<T> type, String name) {
+        return (List<T>) elementIndex().get(type, name);
+    }
+
+    /**
+     * Finds all elements of a type or any of its subtypes, such as all UIAElement, or all UIAScrollView including
+     * table views and collection views.
+     *
+     * @param <T>  type of element
+     * @param type type of element, subtypes included
+     * @param name name of element, or null for any name
+     *
+     * @return read-only list of elements, in depth-first order
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends UIAElement> List<T> findAllInstances(Class<T> type, String name) {
+        List<UIAElement> list = elementIndex().getInstances(type);
+        if (name == null) {
+            return (List<T>) list;
+        }
+        return Collections.unmodifiableList(list.stream().filter(e -> name.equals(e.name())).map(type::cast)
+            .collect(Collectors.toList()));
+    }
+
+    /**
+     * Counts elements of a type and name.
+     *
+     * @param type type of element, subtypes not included
+     * @param name name of element, or null for any name
+     *
+     * @return number of elements
+     */
+    public int count(Class<? extends UIAElement> type, String name) {
+        return elementIndex().get(type, name).size();
+    }
+
+    /**
+     * Counts all elements of this window, window included.
+     *
+     * @return number of elements
+     */
+    public int count() {
+        return elementIndex().size();
     }
 
     /**
@@ -73,6 +169,104 @@ public class UIAWindow extends UIAElement {
         return type.cast(super.findElementPartialName(type, partialName));
     }
 
+    /**
+     * Finds all elements at a point on screen, such as for a tap at coordinates. Elements are z-ordered by tree
+     * depth: deeper elements, and later siblings, come first.
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     *
+     * @return elements whose rect contains the point, topmost first, window included
+     */
+    public List<UIAElement> elementsAt(float x, float y) {
+        return spatialIndex().elementsAt(x, y);
+    }
+
+    /**
+     * Finds the topmost element at a point on screen.
+     *
+     * @param x x coordinate
+     * @param y y coordinate
+     *
+     * @return deepest element whose rect contains the point, or null if the point is out of all elements
+     */
+    public UIAElement topmostAt(float x, float y) {
+        List<UIAElement> list = spatialIndex().elementsAt(x, y);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * Finds all elements that overlap an area, such as a region of a visual diff.
+     *
+     * @param rect area
+     *
+     * @return elements whose rect intersects the area, topmost first, window included
+     */
+    public List<UIAElement> elementsIntersecting(Rectangle2D rect) {
+        return spatialIndex().elementsIntersecting(rect);
+    }
+
+    /**
+     * Gets validity, label, value, visibility, enabled and keyboard focus of many elements in one round trip to
+     * device.
+     *
+     * @param elements elements of this window
+     *
+     * @return state of each element, in the order of the collection
+     */
+    public Map<UIAElement, UIAElementState> snapshot(Collection<? extends UIAElement> elements) {
+        List<UIAElement> list = new ArrayList<>(elements);
+        List<UIAElementState> states = UIAElementState.load(getInstruments(), list);
+        Map<UIAElement, UIAElementState> map = new LinkedHashMap<>();
+        for (int i = 0; i < list.size(); i++) {
+            map.put(list.get(i), states.get(i));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Compares this window with a later snapshot of it, such as the next {@link UIAApplication#mainWindow()}.
+     *
+     * @param window later snapshot
+     *
+     * @return elements added, removed, moved or renamed in the later snapshot
+     */
+    public UIAWindowDiff diff(UIAWindow window) {
+        return new UIAWindowDiff(this, window);
+    }
+
+    private UIAElementIndex elementIndex() {
+        UIAElementIndex ei = elementIndex;
+        if (ei == null) {
+            synchronized (this) {
+                ei = elementIndex;
+                if (ei == null) {
+                    long start = System.nanoTime();
+                    ei = new UIAElementIndex(this);
+                    elementIndex = ei;
+                    LOG.trace("index {} elements in {} us", ei.size(), (System.nanoTime() - start) / 1000);
+                }
+            }
+        }
+        return ei;
+    }
+
+    private UIASpatialIndex spatialIndex() {
+        UIASpatialIndex si = spatialIndex;
+        if (si == null) {
+            synchronized (this) {
+                si = spatialIndex;
+                if (si == null) {
+                    long start = System.nanoTime();
+                    si = new UIASpatialIndex(this);
+                    spatialIndex = si;
+                    LOG.trace("spatial index {} elements in {} us", si.size(), (System.nanoTime() - start) / 1000);
+                }
+            }
+        }
+        return si;
+    }
+
     public UIAButton findButton(String name) {
         return this.findElement(UIAButton.class, name);
     }
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2015 - 2016 Nebula Bay.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.tascape.qa.th.ios.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Changes between two snapshots of a window, see {@link UIAWindow#diff(UIAWindow)}.
+ * <p>
+ * Elements are matched level by level, from the window down. Children of matched elements are matched first by
+ * identity, which is type, name, and occurrence among siblings of the same type and name, so an element keeps its
+ * identity when siblings are inserted or removed before it. Children left over on both sides are then matched by
+ * type and index, as renamed. Everything else is added or removed, together with all its descendants.
+ *
+ * @author linsong wang
+ */
+public class UIAWindowDiff {
+
+    public enum ChangeType {
+        /**
+         * Element is only in the new window.
+         */
+        ADDED,
+        /**
+         * Element is only in the old window.
+         */
+        REMOVED,
+        /**
+         * Element has a different rect or index.
+         */
+        MOVED,
+        /**
+         * Element has a different name, at the same index, with the same type.
+         */
+        RENAMED
+    }
+
+    private final List<Change> changes;
+
+    UIAWindowDiff(UIAWindow before, UIAWindow after) {
+        List<Change> list = new ArrayList<>();
+        if (before.getClass() != after.getClass() || before.index() != after.index()) {
+            list.add(new Change(ChangeType.REMOVED, before, null));
+            addAll(list, ChangeType.REMOVED, before.elements(), true);
+            list.add(new Change(ChangeType.ADDED, null, after));
+            addAll(list, ChangeType.ADDED, after.elements(), false);
+        } else {
+            if (!Objects.equals(before.rect(), after.rect())) {
+                list.add(new Change(ChangeType.MOVED, before, after));
+            }
+            compare(list, before, after);
+        }
+        this.changes = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Gets all changes, parents before children.
+     *
+     * @return changes
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public List<Change> getChanges(ChangeType type) {
+        return changes.stream().filter(c -> c.type == type).collect(Collectors.toList());
+    }
+
+    /**
+     * Checks if two windows have the same elements, with the same names, rects and indexes.
+     *
+     * @return true if nothing is changed
+     */
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public List<UIAElement> added() {
+        return changes.stream().filter(c -> c.type == ChangeType.ADDED).map(Change::getNewElement)
+            .collect(Collectors.toList());
+    }
+
+    public List<UIAElement> removed() {
+        return changes.stream().filter(c -> c.type == ChangeType.REMOVED).map(Change::getOldElement)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Finds the first added element of a type and name, such as a cell that has just been loaded.
+     *
+     * @param <T>  type of element
+     * @param type type of element
+     * @param name name of element, or null for any name
+     *
+     * @return element of new window, or null
+     */
+    public <T extends UIAElement> T findAdded(Class<T> type, String name) {
+        return find(ChangeType.ADDED, type, name);
+    }
+
+    /**
+     * Finds the first removed element of a type and name, such as a dismissed alert.
+     *
+     * @param <T>  type of element
+     * @param type type of element
+     * @param name name of element, or null for any name
+     *
+     * @return element of old window, or null
+     */
+    public <T extends UIAElement> T findRemoved(Class<T> type, String name) {
+        return find(ChangeType.REMOVED, type, name);
+    }
+
+    @Override
+    public String toString() {
+        return changes.stream().map(Change::toString).collect(Collectors.joining("\n"));
+    }
+
+    private <T extends UIAElement> T find(ChangeType changeType, Class<T> type, String name) {
+        for (Change c : changes) {
+            UIAElement e = changeType == ChangeType.ADDED ? c.newElement : c.oldElement;
+            if (c.type == changeType && type.equals(e.getClass()) && (name == null || name.equals(e.name()))) {
+                return type.cast(e);
+            }
+        }
+        return null;
+    }
+
+    private static void compare(List<Change> list, UIAElement before, UIAElement after) {
+        Map<String, UIAElement> left = identities(before.elements());
+        Map<String, UIAElement> right = identities(after.elements());
+        List<UIAElement[]> pairs = new ArrayList<>();
+
+        for (Iterator<Map.Entry<String, UIAElement>> it = left.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, UIAElement> entry = it.next();
+            UIAElement b = entry.getValue();
+            UIAElement a = right.remove(entry.getKey());
+            if (a != null) {
+                it.remove();
+                if (b.index() != a.index() || !Objects.equals(b.rect(), a.rect())) {
+                    list.add(new Change(ChangeType.MOVED, b, a));
+                }
+                pairs.add(new UIAElement[]{b, a});
+            }
+        }
+
+        Map<Integer, UIAElement> byIndex = new LinkedHashMap<>();
+        right.values().forEach(a -> byIndex.put(a.index(), a));
+        for (Iterator<UIAElement> it = left.values().iterator(); it.hasNext();) {
+            UIAElement b = it.next();
+            UIAElement a = byIndex.get(b.index());
+            if (a != null && a.getClass() == b.getClass()) {
+                it.remove();
+                byIndex.remove(b.index());
+                list.add(new Change(ChangeType.RENAMED, b, a));
+                pairs.add(new UIAElement[]{b, a});
+            }
+        }
+
+        addAll(list, ChangeType.REMOVED, left.values().toArray(new UIAElement[0]), true);
+        addAll(list, ChangeType.ADDED, byIndex.values().toArray(new UIAElement[0]), false);
+        for (UIAElement[] pair : pairs) {
+            compare(list, pair[0], pair[1]);
+        }
+    }
+
+    /*
+     * Keys children by type, name and occurrence among siblings of the same type and name, in index order.
+     */
+    private static Map<String, UIAElement> identities(UIAElement[] elements) {
+        Map<String, UIAElement> map = new LinkedHashMap<>();
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (UIAElement e : elements) {
+            String key = e.type().getName() + "\"" + e.name() + "\"";
+            int n = occurrences.merge(key, 1, Integer::sum);
+            map.put(key + (n - 1), e);
+        }
+        return map;
+    }
+
+    private static void addAll(List<Change> list, ChangeType type, UIAElement[] elements, boolean old) {
+        for (UIAElement e : elements) {
+            list.add(old ? new Change(type, e, null) : new Change(type, null, e));
+            addAll(list, type, e.elements(), old);
+        }
+    }
+
+    /**
+     * Change of one element.
+     */
+    public static class Change {
+        private final ChangeType type;
+
+        private final UIAElement oldElement;
+
+        private final UIAElement newElement;
+
+        Change(ChangeType type, UIAElement oldElement, UIAElement newElement) {
+            this.type = type;
+            this.oldElement = oldElement;
+            this.newElement = newElement;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        /**
+         * Gets the element in old window.
+         *
+         * @return element, or null if added
+         */
+        public UIAElement getOldElement() {
+            return oldElement;
+        }
+
+        /**
+         * Gets the element in new window.
+         *
+         * @return element, or null if removed
+         */
+        public UIAElement getNewElement() {
+            return newElement;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + (oldElement == null ? "" : describe(oldElement))
+                + (oldElement != null && newElement != null ? " -> " : "")
+                + (newElement == null ? "" : describe(newElement));
+        }
+
+        private static String describe(UIAElement e) {
+            return String.format("%s %d \"%s\" [x=%s,y=%s,w=%s,h=%s]", e.type().getName(), e.index(),
+                e.name(), e.rect().x, e.rect().y, e.rect().width, e.rect().height);
+        }
+    }
+}
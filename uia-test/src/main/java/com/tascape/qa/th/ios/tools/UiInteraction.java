@@ -41,7 +41,9 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
@@ -105,6 +107,10 @@ public class UiInteraction {
 
     private final JTree jtView = new JTree();
 
+    private final Map<UIAElement, DefaultMutableTreeNode> treeNodes = new IdentityHashMap<>();
+
+    private volatile UIAWindow window;
+
     public UiInteraction(UiAutomationDevice device) {
         this.device = device;
     }
@@ -325,6 +331,7 @@ public class UiInteraction {
     }
 
     private TreeModel getModel(UIAWindow window) {
+        treeNodes.clear();
         DefaultMutableTreeNode rootNode = createNode(window);
         DefaultTreeModel treeModel = new DefaultTreeModel(rootNode);
         return treeModel;
@@ -332,6 +339,7 @@ public class UiInteraction {
 
     private DefaultMutableTreeNode createNode(UIAElement element) {
         DefaultMutableTreeNode node = new DefaultMutableTreeNode(element);
+        treeNodes.put(element, node);
         for (UIAElement e : element.elements()) {
             node.add(createNode(e));
         }
@@ -419,7 +427,7 @@ public class UiInteraction {
                         c.add(jlScreen);
                         jlScreen.addMouseListener(new ScreenshotMouseListener());
 
-                        UIAWindow window = device.mainWindow();
+                        window = device.mainWindow();
                         jtView.setModel(getModel(window));
                         jtView.setVisible(true);
                         this.expandAllNodes(jtView, 0, jtView.getRowCount());
@@ -470,27 +478,26 @@ public class UiInteraction {
             }
         }
 
+        /*
+         * Selects leaf elements at the point, whose ancestors are all at the point too.
+         */
         private void highlightElementOnTree(Point p) {
-            DefaultMutableTreeNode n = (DefaultMutableTreeNode) jtView.getModel().getRoot();
-            highlightElementOnTree(p, n);
-        }
-
-        private void highlightElementOnTree(Point p, DefaultMutableTreeNode node) {
-            Object uo = node.getUserObject();
-            if (!(uo instanceof UIAElement)) {
+            if (window == null) {
                 return;
             }
-            UIAElement e = UIAElement.class.cast(uo);
-            if (e.rect().contains(p)) {
-                if (node.isLeaf()) {
+            for (UIAElement e : window.elementsAt(p.x, p.y)) {
+                DefaultMutableTreeNode node = treeNodes.get(e);
+                if (node == null || !node.isLeaf()) {
+                    continue;
+                }
+                UIAElement a = e.parent();
+                while (a != null && a.rect().contains(p)) {
+                    a = a.parent();
+                }
+                if (a == null) {
                     TreePath path = new TreePath(node.getPath());
                     jtView.scrollPathToVisible(path);
                     jtView.addSelectionPath(path);
-                } else {
-                    for (int i = 0, j = node.getChildCount(); i < j; i++) {
-                        DefaultMutableTreeNode n = (DefaultMutableTreeNode) node.getChildAt(i);
-                        highlightElementOnTree(p, n);
-                    }
                 }
             }
         }
@@ -505,7 +512,7 @@ public class UiInteraction {
             if (uo instanceof UIAElement) {
                 UIAElement element = (UIAElement) uo;
                 Rectangle.Float rect = element.rect();
-                String s = "<html>" + element.getClass().getSimpleName() + " <b>" + element.name() + "</b> "
+                String s = "<html>" + element.type().getName() + " <b>" + element.name() + "</b> "
                     + String.format("[%s,%s,%s,%s]", rect.x, rect.y, rect.width, rect.height);
                 this.setText(s);
             }
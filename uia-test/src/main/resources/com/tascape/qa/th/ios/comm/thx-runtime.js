@@ -0,0 +1,224 @@
+/*
+ * Helper runtime of on-device loop, installed once per Instruments session. Elements are addressed by window index
+ * and a path of element indexes, such as thx.e(0, [3, 0]) for window.elements()[3].elements()[0].
+ * Keep VERSION in sync with com.tascape.qa.th.ios.comm.JavaScriptRuntime.
+ */
+var thx = (function() {
+  var VERSION = 4;
+
+  /*
+   * Chunks of dumps not read yet, by dump id, so that dumps of concurrent requests do not mix. Only the latest few
+   * are kept, in case a reader gives up.
+   */
+  var MAX_DUMPS = 8;
+
+  var dumps = {}, dumpIds = [], nextDumpId = 1;
+
+  function e(w, p) {
+    var app = UIATarget.localTarget().frontMostApp();
+    var x = w == 0 ? app.mainWindow() : app.windows()[w];
+    for (var i = 0; i < p.length; i++) {
+      x = x.elements()[p[i]];
+    }
+    return x;
+  }
+
+  function a(w, p, m) {
+    var x = e(w, p);
+    return x[m].apply(x, Array.prototype.slice.call(arguments, 3));
+  }
+
+  function l(w, p) {
+    e(w, p).logElement();
+  }
+
+  function s(es) {
+    var ss = [];
+    for (var i = 0; i < es.length; i++) {
+      var x = e(es[i][0], es[i][1]);
+      if (x.checkIsValid()) {
+        ss.push({valid: true, label: x.label(), value: x.value(), visible: !!x.isVisible(),
+          enabled: !!x.isEnabled(), focus: !!x.hasKeyboardFocus()});
+      } else {
+        ss.push({valid: false});
+      }
+    }
+    return ss;
+  }
+
+  function typeOf(x) {
+    return String(x).replace(/^\[object (\w+)\]$/, '$1');
+  }
+
+  /*
+   * Elements are fetched anew on each call, so the same element is recognized by type, name and rect.
+   */
+  function same(x, y) {
+    return typeOf(x) == typeOf(y) && x.name() == y.name() && JSON.stringify(x.rect()) == JSON.stringify(y.rect());
+  }
+
+  /*
+   * Index of the one element of es that is the same as x. An element that is the same as one of its siblings, such
+   * as one of many zero-size "(null)" texts of a web view, cannot be told apart, and the path to it would point at
+   * the other one, so it throws instead.
+   */
+  function indexOf(es, x) {
+    var found = -1;
+    for (var i = 0; i < es.length; i++) {
+      if (same(es[i], x)) {
+        if (found >= 0) {
+          throw new Error('Cannot tell ' + typeOf(x) + ' "' + x.name() + '" from a sibling of the same name and rect');
+        }
+        found = i;
+      }
+    }
+    return found;
+  }
+
+  /*
+   * Encoder of dumps, "types;records". Types is a comma separated list of element types, and each record, in
+   * depth-first order, is "type,children,x,y,width,height,flags," followed by name, label and value, each as
+   * "length:text", or "~" if null. Flags are 1 visible, 2 enabled and 4 keyboard focus.
+   */
+  function encoder() {
+    var ids = {}, types = [], out = [];
+
+    function str(v) {
+      if (v === null || v === undefined) {
+        return '~';
+      }
+      v = String(v);
+      return v.length + ':' + v;
+    }
+
+    function record(x, children) {
+      var type = typeOf(x);
+      if (!(type in ids)) {
+        ids[type] = types.length;
+        types.push(type);
+      }
+      var r = x.rect();
+      var f = (x.isVisible() ? 1 : 0) | (x.isEnabled() ? 2 : 0) | (x.hasKeyboardFocus() ? 4 : 0);
+      out.push(ids[type] + ',' + children + ',' + r.origin.x + ',' + r.origin.y + ',' + r.size.width + ','
+        + r.size.height + ',' + f + ',' + str(x.name()) + str(x.label()) + str(x.value()));
+    }
+
+    /*
+     * Records an element and its descendants, down to depth levels, or all of them if depth is negative.
+     */
+    function walk(x, depth) {
+      var es = depth == 0 ? [] : x.elements();
+      record(x, es.length);
+      for (var i = 0; i < es.length; i++) {
+        walk(es[i], depth - 1);
+      }
+    }
+
+    return {record: record, walk: walk, dump: function() {
+      return types.join(',') + ';' + out.join('');
+    }};
+  }
+
+  /*
+   * Bytes a UTF-16 code unit takes in a posted result, which is JSON escaped and then UTF-8 encoded. Surrogate pairs
+   * are counted by the caller.
+   */
+  function bytes(c) {
+    if (c == 0x22 || c == 0x5c || c == 0x08 || c == 0x09 || c == 0x0a || c == 0x0c || c == 0x0d) {
+      return 2;
+    }
+    if (c < 0x20 || (c >= 0xd800 && c < 0xe000)) {
+      return 6;
+    }
+    return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+  }
+
+  /*
+   * Splits a dump into chunks of at most size bytes as posted back, see bytes(), and returns "id:count:chunk0".
+   * c(id, i) returns other chunks.
+   */
+  function split(dump, size) {
+    var chunks = [];
+    for (var i = 0; i < dump.length || chunks.length == 0;) {
+      var j = i, n = 0;
+      while (j < dump.length) {
+        var c = dump.charCodeAt(j), d = dump.charCodeAt(j + 1);
+        var pair = c >= 0xd800 && c < 0xdc00 && d >= 0xdc00 && d < 0xe000;
+        var b = pair ? 4 : bytes(c);
+        if (n + b > size && j > i) {
+          break;
+        }
+        n += b;
+        j += pair ? 2 : 1;
+      }
+      chunks.push(dump.substring(i, j));
+      i = j;
+    }
+    var id = nextDumpId++;
+    if (chunks.length > 1) {
+      dumps[id] = chunks;
+      dumpIds.push(id);
+      while (dumpIds.length > MAX_DUMPS) {
+        delete dumps[dumpIds.shift()];
+      }
+    }
+    return id + ':' + chunks.length + ':' + chunks[0];
+  }
+
+  /*
+   * Dumps the element tree of a window.
+   */
+  function t(w, size) {
+    var d = encoder();
+    d.walk(e(w, []), -1);
+    return split(d.dump(), size);
+  }
+
+  /*
+   * Dumps the subtree of an element, down to depth levels, as "window,index,index...;" followed by a dump of its
+   * window, in which each ancestor only has the element on the path.
+   */
+  function u(x, depth, size) {
+    var chain = [], path = [];
+    for (var c = x; typeOf(c) != 'UIAWindow';) {
+      var p = c.parent(), i = indexOf(p ? p.elements() : [], c);
+      if (i < 0) {
+        throw new Error('Cannot find ' + typeOf(c) + ' in its parent');
+      }
+      path.unshift(i);
+      chain.unshift(p);
+      c = p;
+    }
+    var app = UIATarget.localTarget().frontMostApp(), w = 0;
+    if (!same(c, app.mainWindow())) {
+      w = indexOf(app.windows(), c);
+      if (w < 0) {
+        throw new Error('Cannot find window of ' + typeOf(x));
+      }
+    }
+    var d = encoder();
+    for (var j = 0; j < chain.length; j++) {
+      d.record(chain[j], 1);
+    }
+    d.walk(x, depth);
+    return split([w].concat(path).join(',') + ';' + d.dump(), size);
+  }
+
+  /*
+   * Returns a chunk of a dump, or null if the dump is gone, such as after a restart. The dump is freed after its last
+   * chunk is read.
+   */
+  function c(id, i) {
+    var chunks = dumps[id];
+    if (!chunks || i >= chunks.length) {
+      return null;
+    }
+    if (i == chunks.length - 1) {
+      delete dumps[id];
+      dumpIds.splice(dumpIds.indexOf(id), 1);
+    }
+    return chunks[i];
+  }
+
+  return {version: VERSION, e: e, a: a, l: l, s: s, t: t, u: u, c: c};
+})();